@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2023 Daniel Maier.
+ * Licensed under the MIT License.
+ */
+
+package net.scoreworks.treetools;
+
+import net.scoreworks.treetools.weaver.FieldWriteWeaver;
+
+
+/**
+ * Hook that detects changes of the data model. It is called before every write of a non static, non final, non transient
+ * field of a {@link MutableObject}, either by the EntityStateListener aspect or by the calls the {@link FieldWriteWeaver}
+ * inserts into compiled data model classes. Which of the two is used is decided when the data model is built.
+ */
+public final class ChangeTracking {
+    private ChangeTracking() {}
+
+    /**
+     * Log the write of a field and notify the wrappers of the object about it
+     * @param mo object whose field is written
+     * @param newValue value the field is set to, boxed if the field is primitive
+     * @param declaringClass class the field is accessed through
+     * @param fieldName name of the field
+     */
+    public static void beforeWrite(MutableObject mo, Object newValue, Class<?> declaringClass, String fieldName) {
+        //a field of the root entity, so tracking costs no lookup
+        Repository repository = mo.getRootEntity().repository;
+        if (repository != null && repository.logLocalChange(mo, declaringClass, fieldName, newValue))
+            mo.notifyRegisteredWrappersAboutChange();
+    }
+}
@@ -6,7 +6,9 @@
 package net.scoreworks.treetools;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Base class for each class in the data model except the {@link RootEntity}. Each such class has one and only one owner
@@ -31,21 +33,22 @@ public abstract class Child<O extends MutableObject> implements MutableObject {
      */
     private transient boolean removalInProcess;
 
+    /**
+     * What happened to this object in the ongoing {@link RootEntity#bulk(Runnable)} scope, 0 outside of it
+     */
+    transient byte bulkFlags;
+
     protected Child(O owner) {
         this.owner = owner;
-        //save direct reference to model root
-        MutableObject it = owner;
-        while(!(it instanceof RootEntity)) {
-            it = ((Child<?>)it).getOwner();
-        }
-        root = (RootEntity) it;
+        //save direct reference to model root, which the owner already knows
+        root = owner.getRootEntity();
         //call addToOwner only if the current instance is a direct Child. If not, derivations will call it once fields are set
         if (isDirectChild())
             addToOwner();
         //notify wrappers of owner
-        owner.notifyRegisteredWrappersAboutChange();
+        root.notifyAboutChange(owner);
         //log as creation (isn't done by repository when in ongoing pull)
-        Repository repository = TransactionManager.getInstance().repositories.get(getRootEntity());
+        Repository repository = root.repository;
         if (repository != null) {
             repository.logLocalCreation(this);
         }
@@ -66,28 +69,27 @@ public abstract class Child<O extends MutableObject> implements MutableObject {
             return;
         removalInProcess = true;
         //notify wrappers of owner about change (not done for subsequent children)
-        owner.notifyRegisteredWrappersAboutChange();
+        root.notifyAboutChange(owner);
         //start removing all subsequent children
-        Repository repository = TransactionManager.getInstance().repositories.get(getRootEntity());
-        if (repository != null)
-            recursivelyRemove(this, repository);
-        else recursivelyRemove(this);
-    }
-    private void recursivelyRemove(Child<?> ch) {
-        ch.notifyAndRemoveRegisteredWrappers();
-        ch.removeFromOwner();
-        ch.onRemove();
-        for (Child<?> t : ClassMetadata.getChildren(ch)) {
-            recursivelyRemove(t);
-        }
+        recursivelyRemove(root.repository);
     }
-    private void recursivelyRemove(Child<?> ch, Repository repository) {
-        repository.logLocalDeletion(ch);
-        ch.notifyAndRemoveRegisteredWrappers();
-        ch.removeFromOwner();
-        ch.onRemove();
-        for (Child<?> t : ClassMetadata.getChildren(ch)) {
-            recursivelyRemove(t, repository);
+    private void recursivelyRemove(Repository repository) {
+        //depth-first in container order. Children are removed from their owners during the traversal, so they are
+        //collected on a worklist before any of them is processed
+        ArrayList<Child<?>> worklist = new ArrayList<>();
+        Consumer<Child<?>> collect = worklist::add;
+        worklist.add(this);
+        while (!worklist.isEmpty()) {
+            Child<?> ch = worklist.remove(worklist.size()-1);
+            if (repository != null)
+                repository.logLocalDeletion(ch);
+            ch.notifyAndRemoveRegisteredWrappers();
+            ch.removeFromOwner();
+            ch.onRemove();
+            int firstChild = worklist.size();
+            ClassMetadata.forEachChild(ch, collect);
+            //reverse the children, so the first one is processed next
+            Collections.reverse(worklist.subList(firstChild, worklist.size()));
         }
     }
 
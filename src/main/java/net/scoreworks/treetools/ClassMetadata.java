@@ -5,23 +5,37 @@
 
 package net.scoreworks.treetools;
 
+import net.scoreworks.treetools.annotations.AbstractClass;
 import net.scoreworks.treetools.annotations.PolymorphOwner;
+import net.scoreworks.treetools.annotations.TransactionalConstructor;
 import net.scoreworks.treetools.exceptions.IllegalDataModelException;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.ClassUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 
 
 /**
  * Class to cache transactions relevant information about a {@link MutableObject} class' fields and methods, so they don't have to
- * be obtained for each class each time with reflections.
+ * be obtained for each class each time with reflections. The cache can be accessed from several threads concurrently.
+ * Use {@link ClassMetadata#preload(Class)} to analyze a whole data model up front instead of on first use of each class.
  */
 public class ClassMetadata {
 
     /** Store {@link ClassMetadata} of analyzed classes for quick access */
-    private static final Map<Class<? extends MutableObject>, ClassMetadata> metadata = new HashMap<>();
+    private static final ConcurrentMap<Class<? extends MutableObject>, ClassMetadata> metadata = new ConcurrentHashMap<>();
+
+    /** Store subclasses of abstract data model classes, used to resolve polymorphic types when parsing */
+    private static final ConcurrentMap<Class<?>, Class<?>[]> subclasses = new ConcurrentHashMap<>();
+
+    /** Analysis results of a previous run, loaded with {@link ClassMetadata#loadSchema(File)} */
+    private static volatile PersistedSchema persistedSchema;
 
     /**
      * Class-type whose content is described
@@ -41,39 +55,92 @@ public class ClassMetadata {
      */
     Field[] fields;
 
+    /**
+     * Compiled accessors for {@link ClassMetadata#collections}, in the same order
+     */
+    FieldAccessor[] collectionAccessors;
+
+    /**
+     * Type of each container in {@link ClassMetadata#collections}, so traversals don't have to classify them each time
+     */
+    ContainerType[] containerTypes;
+
+    /**
+     * Compiled accessors for {@link ClassMetadata#fields}, in the same order. The index of a field in these arrays is
+     * its ordinal
+     */
+    FieldAccessor[] fieldAccessors;
+
+    /**
+     * Ordinals of the {@link ClassMetadata#fields} by name, for each class they are accessed through
+     */
+    private final ClassValue<Map<String, Integer>> ordinals = new ClassValue<Map<String, Integer>>() {
+        @Override
+        protected Map<String, Integer> computeValue(Class<?> declaringClass) {
+            Map<String, Integer> result = new HashMap<>();
+            for (FieldAccessor accessor : fieldAccessors) {
+                String name = accessor.field.getName();
+                int ordinal = resolveOrdinal(declaringClass, name);
+                if (ordinal >= 0)
+                    result.put(name, ordinal);
+            }
+            return result;
+        }
+    };
+
+    /**
+     * Number of reference and primitive fields, which is the size of the corresponding value arrays of a {@link Remote.ObjectState}
+     */
+    int referenceSlots, primitiveSlots;
+
     /**
      * The class constructor used for transactions. This constructor should be marked with {@link net.scoreworks.treetools.annotations.TransactionalConstructor}
      * to avoid accidental deletion of a seemingly unused constructor. However, this is not necessary to ensure functionality
      */
     Constructor<?> constructor;
 
+    /**
+     * Compiled factory for {@link ClassMetadata#constructor}
+     */
+    ConstructorAccessor factory;
+
     /**
      * Create detailed class info
      * @param clazz class to be described
      * @param constructorParams classes used in the transactional constructor
      */
     ClassMetadata(Class<? extends MutableObject> clazz, Class<?>...constructorParams) {
+        this(clazz, loadGeneratedMetadata(clazz), constructorParams);
+    }
+
+    /**
+     * @param generated compile-time analysis of the class, or null to analyze it with reflections
+     */
+    ClassMetadata(Class<? extends MutableObject> clazz, GeneratedMetadata generated, Class<?>...constructorParams) {
         this.clazz = clazz;
-        traceClassFields();
 
-        //check if keys are immutable if not a DataModelEntity
-        for (int i=1; i<constructorParams.length; i++) {
-            Class<?> key = constructorParams[i];
-            if (!MutableObject.class.isAssignableFrom(key) && isComplexObject(key)) {
-                throwIfMutable(key);
-            }
+        //use compile-time analysis of the MetadataProcessor if present. The model was already validated there
+        if (generated != null) {
+            fields = resolveFields(generated.fieldNames(), generated.fieldLevels());
+            collections = resolveFields(generated.collectionNames(), generated.collectionLevels());
+            compileAccessors();
+            if (generated.constructorParameterTypes() != null)
+                findConstructor(generated.constructorParameterTypes());
+            else
+                findConstructor(transactionalConstructorParams(clazz, constructorParams));
         }
-
-        //find and cache the transactional constructor (which has constructionParams as input parameters)
-        try {
-            //if class can have different owners, get class-type of the owner from annotation
-            //TODO write tests for this (and yes this is necessary)
-            PolymorphOwner polymorphOwner = clazz.getAnnotation(PolymorphOwner.class);
-            if (polymorphOwner != null)
-                constructorParams[0] = polymorphOwner.commonInterface();
-            constructor = clazz.getDeclaredConstructor(constructorParams);
-        } catch (NoSuchMethodException e) {
-            throw new IllegalDataModelException(clazz, " has no suitable constructor!");
+        else {
+            traceClassFields();
+            constructorParams = transactionalConstructorParams(clazz, constructorParams);
+
+            //check if keys are immutable if not a DataModelEntity
+            for (int i=1; i<constructorParams.length; i++) {
+                Class<?> key = constructorParams[i];
+                if (!MutableObject.class.isAssignableFrom(key) && isComplexObject(key)) {
+                    throwIfMutable(key);
+                }
+            }
+            findConstructor(constructorParams);
         }
     }
 
@@ -81,86 +148,172 @@ public class ClassMetadata {
      * Construct a data model specific {@link RootEntity} object
      */
     static RootEntity constructRootEntity(Class<? extends RootEntity> clazz) {
-        if (!metadata.containsKey(clazz)) {
-            metadata.put(clazz, new ClassMetadata(clazz));
-        }
-        ClassMetadata info = metadata.get(clazz);
-        info.constructor.setAccessible(true);
-        try {
-            return (RootEntity) info.constructor.newInstance();
-        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
-            e.printStackTrace();
-        }
-        throw new RuntimeException("Error invoking class constructor for "+clazz.getSimpleName()+"!");
+        ClassMetadata info = metadata.computeIfAbsent(clazz, ClassMetadata::new);
+        return (RootEntity) info.factory.newInstance(new Object[0]);
     }
 
     static Child<?> construct(Class<? extends MutableObject> clazz, Object...objects) {
-        if (!metadata.containsKey(clazz)) {
+        ClassMetadata info = metadata.computeIfAbsent(clazz, c -> {
             Class<?>[] classes = new Class<?>[objects.length];
             for (int i=0; i<objects.length; i++) {
                 classes[i] = objects[i].getClass();
             }
-            metadata.put(clazz, new ClassMetadata(clazz, classes));
-        }
+            return new ClassMetadata(c, classes);
+        });
+        return (Child<?>) info.factory.newInstance(objects);
+    }
 
-        ClassMetadata info = metadata.get(clazz);
-        info.constructor.setAccessible(true);
-        try {
-            return (Child<?>) info.constructor.newInstance(objects);
-        } catch (InvocationTargetException e) {
-            RuntimeException exception = new RuntimeException("Error invoking class constructor for "+clazz.getSimpleName()
-                    +", caused by:\n"+e.getTargetException().getMessage());
-            exception.setStackTrace(e.getTargetException().getStackTrace());
-            throw exception;
-        }
-        catch (InstantiationException | IllegalAccessException e) {
-            throw new RuntimeException("Error invoking class constructor for "+clazz.getSimpleName()+" with parameters: "+ Arrays.toString(objects));
-        }
+    /**
+     * Analyze all classes of a data model, starting from its {@link RootEntity} class and following the declared types
+     * of all containers (including registered subclasses of abstract classes). Doing this once at startup avoids paying
+     * the cost of the analysis the first time each class is used in a commit, pull or clone. Classes that can't be
+     * determined from the declarations alone are still analyzed lazily
+     * @param rootClass class of the data models' root
+     */
+    public static void preload(Class<? extends RootEntity> rootClass) {
+        preload(rootClass, new Class<?>[0], new HashSet<>());
+    }
+
+    /**
+     * Write the analysis of all classes analyzed so far to a file. A later JVM can load it with
+     * {@link ClassMetadata#loadSchema(File)} to skip analyzing these classes. Call this after the data model was
+     * used (or {@link ClassMetadata#preload(Class) preloaded}), so all classes are included
+     * @param file file to write the schema to. Existing files are overwritten
+     */
+    public static void saveSchema(File file) throws IOException {
+        PersistedSchema.write(file, metadata.values(), subclasses);
+    }
+
+    /**
+     * Load a schema written with {@link ClassMetadata#saveSchema(File)}. Classes described in it are not analyzed
+     * with reflections and not validated again when they are first used, as long as the class files of their hierarchy
+     * didn't change since the schema was written. Changed or missing classes are analyzed normally
+     * @param file file to read the schema from
+     */
+    public static void loadSchema(File file) throws IOException {
+        persistedSchema = PersistedSchema.read(file);
+    }
+
+    /**
+     * Forget all analyzed classes and a loaded schema, so classes are analyzed again on their next use
+     */
+    static void clearCache() {
+        persistedSchema = null;
+        metadata.clear();
+        subclasses.clear();
     }
 
     static Field[] getFields(MutableObject mo) {
-        if (!metadata.containsKey(mo.getClass()))
-            metadata.put(mo.getClass(), new ClassMetadata(mo.getClass(), mo.constructorParameterTypes()));
-        return metadata.get(mo.getClass()).fields;
+        return getMetadata(mo).fields;
+    }
+
+    /**
+     * Get the metadata of an already analyzed class
+     */
+    static ClassMetadata getMetadata(Class<? extends MutableObject> clazz) {
+        return metadata.get(clazz);
     }
 
     static Field[] getCollections(MutableObject mo) {
-        if (!metadata.containsKey(mo.getClass()))
-            metadata.put(mo.getClass(), new ClassMetadata(mo.getClass(), mo.constructorParameterTypes()));
-        return metadata.get(mo.getClass()).collections;
+        return getMetadata(mo).collections;
+    }
+
+    static FieldAccessor[] getFieldAccessors(MutableObject mo) {
+        return getMetadata(mo).fieldAccessors;
+    }
+
+    static FieldAccessor[] getCollectionAccessors(MutableObject mo) {
+        return getMetadata(mo).collectionAccessors;
+    }
+
+    /**
+     * Find the ordinal of a field by the way it is referenced in bytecode. Called on every tracked write, so the result
+     * is only resolved once per class the field is accessed through
+     * @param declaringClass class the field is accessed through, which is the declaring class or a subclass of it
+     * @return the ordinal, or -1 if the name doesn't denote one of the {@link ClassMetadata#fields}
+     */
+    int ordinalOf(Class<?> declaringClass, String name) {
+        Integer ordinal = ordinals.get(declaringClass).get(name);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * @return the accessor of one of the {@link ClassMetadata#fields}, or null if the field isn't one of them
+     */
+    FieldAccessor accessorOf(Field field) {
+        //accessed through its declaring class, a name always resolves to the field declared there
+        int ordinal = ordinalOf(field.getDeclaringClass(), field.getName());
+        if (ordinal < 0 || !fieldAccessors[ordinal].field.equals(field))
+            return null;
+        return fieldAccessors[ordinal];
+    }
+
+    private int resolveOrdinal(Class<?> declaringClass, String name) {
+        int ordinal = -1;
+        for (FieldAccessor accessor : fieldAccessors) {
+            Field field = accessor.field;
+            if (!field.getName().equals(name) || !field.getDeclaringClass().isAssignableFrom(declaringClass))
+                continue;
+            //a field hidden by a subclass is only meant if accessed through its own class
+            if (field.getDeclaringClass() == declaringClass)
+                return accessor.ordinal;
+            if (ordinal < 0 || fieldAccessors[ordinal].field.getDeclaringClass().isAssignableFrom(field.getDeclaringClass()))
+                ordinal = accessor.ordinal;
+        }
+        return ordinal;
     }
 
     /**
      * Get a list of all children stored in all {@link ClassMetadata#collections} of a given {@link MutableObject}
      * @param mo object to get children from
      */
-    @SuppressWarnings("unchecked")
     public static ArrayList<Child<?>> getChildren(MutableObject mo) {
-        if (!metadata.containsKey(mo.getClass()))
-            metadata.put(mo.getClass(), new ClassMetadata(mo.getClass(), mo.constructorParameterTypes()));
-        ClassMetadata info = metadata.get(mo.getClass());
-
-        //collect all children into an ArrayList
         ArrayList<Child<?>> children = new ArrayList<>();
-        for (Field field : info.collections) {
-            field.setAccessible(true);
-            try {
-                //field is an array and also initialized
-                if (field.getType().isArray() && field.get(mo) != null)
-                    children.addAll((Collection<? extends Child<?>>) field.get(mo));
-                    //field is a collection
-                else if (Collection.class.isAssignableFrom(field.getType()))
-                    children.addAll(new ArrayList<>((Collection<Child<?>>)field.get(mo)));
-                    //field is a map
-                else if (Map.class.isAssignableFrom(field.getType()))
-                    children.addAll(new ArrayList<>(((Map<?, Child<?>>)field.get(mo)).values()));
-                else
-                    throw new IllegalDataModelException(mo.getClass(), "contains an unknown tape of collection in field" + field.getName());
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
+        forEachChild(mo, children::add);
+        return children;
+    }
+
+    /**
+     * Pass all children stored in all {@link ClassMetadata#collections} of a given {@link MutableObject} to a consumer.
+     * The containers are walked in place, so the consumer must not add or remove children of this object
+     * @param mo object to get children from
+     * @param consumer receives each child
+     */
+    public static void forEachChild(MutableObject mo, Consumer<? super Child<?>> consumer) {
+        ClassMetadata info = getMetadata(mo);
+        for (int i=0; i<info.collectionAccessors.length; i++) {
+            Object container = info.collectionAccessors[i].get(mo);
+            //uninitialized containers hold no children
+            if (container == null)
+                continue;
+            switch (info.containerTypes[i]) {
+                case ARRAY:
+                    for (Object child : (Object[]) container) {
+                        if (child != null)
+                            consumer.accept((Child<?>) child);
+                    }
+                    break;
+                case COLLECTION:
+                    for (Object child : (Collection<?>) container)
+                        consumer.accept((Child<?>) child);
+                    break;
+                case MAP:
+                    for (Object child : ((Map<?, ?>) container).values())
+                        consumer.accept((Child<?>) child);
+                    break;
             }
         }
-        return children;
+    }
+
+    /**
+     * Get the subclasses of an abstract data model class, as registered with {@link AbstractClass}. Uses the
+     * {@link GeneratedMetadata} of the class if present
+     */
+    static Class<?>[] getSubclasses(Class<?> abstractClass) {
+        Class<?>[] result = findSubclasses(abstractClass);
+        if (result == null)
+            throw new IllegalDataModelException(abstractClass, "is an abstract class but does not specify its subclasses in the @AbstractClass interface!");
+        return result;
     }
 
     /**
@@ -248,6 +401,180 @@ public class ClassMetadata {
         //to array
         fields = fieldList.toArray(new Field[0]);
         collections = collectionList.toArray(new Field[0]);
+        compileAccessors();
+    }
+
+    private void compileAccessors() {
+        //compile accessors once, so objects of this class are not accessed via reflections
+        fieldAccessors = new FieldAccessor[fields.length];
+        for (int i=0; i<fields.length; i++) {
+            //primitives and references are stored in separate slot arrays of a state
+            if (fields[i].getType().isPrimitive())
+                fieldAccessors[i] = new FieldAccessor(fields[i], i, primitiveSlots++);
+            else
+                fieldAccessors[i] = new FieldAccessor(fields[i], i, referenceSlots++);
+        }
+        collectionAccessors = new FieldAccessor[collections.length];
+        containerTypes = new ContainerType[collections.length];
+        for (int i=0; i<collections.length; i++) {
+            collectionAccessors[i] = new FieldAccessor(collections[i], i, i);
+            Class<?> type = collections[i].getType();
+            if (type.isArray())
+                containerTypes[i] = ContainerType.ARRAY;
+            else if (Collection.class.isAssignableFrom(type))
+                containerTypes[i] = ContainerType.COLLECTION;
+            else if (Map.class.isAssignableFrom(type))
+                containerTypes[i] = ContainerType.MAP;
+            else
+                throw new IllegalDataModelException(clazz, "contains an unknown type of collection in field " + collections[i].getName());
+        }
+    }
+
+    private void findConstructor(Class<?>[] constructorParams) {
+        //find and cache the transactional constructor (which has constructionParams as input parameters)
+        try {
+            constructor = clazz.getDeclaredConstructor(constructorParams);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalDataModelException(clazz, " has no suitable constructor!");
+        }
+        factory = new ConstructorAccessor(constructor);
+    }
+
+    private Field[] resolveFields(String[] names, int[] levels) {
+        Field[] result = new Field[names.length];
+        for (int i=0; i<names.length; i++) {
+            Class<?> declaringClass = clazz;
+            for (int level=0; level<levels[i]; level++)
+                declaringClass = declaringClass.getSuperclass();
+            try {
+                result[i] = declaringClass.getDeclaredField(names[i]);
+            } catch (NoSuchFieldException e) {
+                throw new IllegalDataModelException(clazz, "doesn't match its generated metadata (field \""+names[i]+"\" is missing). Recompile the data model!");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the {@link GeneratedMetadata} for a class from a loaded {@link PersistedSchema} or as created by the
+     * {@link net.scoreworks.treetools.processor.MetadataProcessor}. Returns null if neither is available
+     */
+    static GeneratedMetadata loadGeneratedMetadata(Class<?> clazz) {
+        PersistedSchema schema = persistedSchema;
+        if (schema != null) {
+            GeneratedMetadata persisted = schema.get(clazz);
+            if (persisted != null)
+                return persisted;
+        }
+        try {
+            Class<?> generated = Class.forName(GeneratedMetadata.classNameOf(clazz.getName()), true, clazz.getClassLoader());
+            return (GeneratedMetadata) generated.getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalDataModelException(clazz, "has generated metadata that can't be instantiated!");
+        }
+    }
+
+    static ClassMetadata getMetadata(MutableObject mo) {
+        ClassMetadata info = metadata.get(mo.getClass());
+        if (info == null)
+            info = metadata.computeIfAbsent(mo.getClass(), c -> new ClassMetadata(c, mo.constructorParameterTypes()));
+        return info;
+    }
+
+    private static Class<?>[] findSubclasses(Class<?> abstractClass) {
+        Class<?>[] result = subclasses.get(abstractClass);
+        if (result == null) {
+            GeneratedMetadata generated = loadGeneratedMetadata(abstractClass);
+            if (generated != null)
+                result = generated.subclasses();
+            else {
+                AbstractClass abst = abstractClass.getAnnotation(AbstractClass.class);
+                if (abst == null)
+                    return null;
+                result = abst.subclasses();
+            }
+            subclasses.putIfAbsent(abstractClass, result);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void preload(Class<? extends MutableObject> clazz, Class<?>[] constructorParams, Set<Class<?>> visited) {
+        if (!visited.add(clazz))
+            return;
+        //abstract classes are never instantiated, but their registered subclasses are
+        if (Modifier.isAbstract(clazz.getModifiers())) {
+            Class<?>[] subclasses = findSubclasses(clazz);
+            if (subclasses != null) {
+                for (Class<?> subclass : subclasses)
+                    preload((Class<? extends MutableObject>) subclass, constructorParams, visited);
+            }
+            return;
+        }
+        ClassMetadata info = metadata.computeIfAbsent(clazz, c -> new ClassMetadata(c, constructorParams));
+
+        //follow the containers to the owned classes
+        for (Field field : info.collections) {
+            Class<?> storedType = null;
+            Class<?> keyType = null;
+            if (field.getType().isArray()) {
+                storedType = field.getType().getComponentType();
+                keyType = int.class;
+            }
+            else if (field.getGenericType() instanceof ParameterizedType) {
+                Type[] types = ((ParameterizedType) field.getGenericType()).getActualTypeArguments();
+                //maps store the last generic type and are assumed to use the second last one as key
+                if (Collection.class.isAssignableFrom(field.getType()))
+                    storedType = types[0] instanceof Class ? (Class<?>) types[0] : null;
+                else {
+                    storedType = types[types.length-1] instanceof Class ? (Class<?>) types[types.length-1] : null;
+                    if (types.length >= 2 && types[types.length-2] instanceof Class)
+                        keyType = (Class<?>) types[types.length-2];
+                }
+            }
+            //can't be determined from the declaration. This class is analyzed lazily instead
+            if (storedType == null || !MutableObject.class.isAssignableFrom(storedType))
+                continue;
+            Class<?>[] params = keyType == null ? new Class<?>[]{clazz} : new Class<?>[]{clazz, keyType};
+            preload((Class<? extends MutableObject>) storedType, params, visited);
+        }
+
+        //children can also be owned by a plain field. These fields can't be told apart from references to objects owned
+        //elsewhere, so only classes with a marked constructor are followed, as nothing has to be derived for them
+        for (Field field : info.fields) {
+            Class<?> type = field.getType();
+            if (Child.class.isAssignableFrom(type) && !Modifier.isAbstract(type.getModifiers()) && hasMarkedConstructor(type))
+                preload((Class<? extends MutableObject>) type, new Class<?>[]{clazz}, visited);
+        }
+    }
+
+    private static boolean hasMarkedConstructor(Class<?> clazz) {
+        for (Constructor<?> constructor : clazz.getDeclaredConstructors()) {
+            if (constructor.isAnnotationPresent(TransactionalConstructor.class))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the parameter types of the transactional constructor. A constructor marked with {@link TransactionalConstructor}
+     * is used as it is. Otherwise, the types derived from the owner and key of an instance (or from the declaration of
+     * the owning container when preloading) are used, with the owner replaced by the common interface of a {@link PolymorphOwner}
+     */
+    private static Class<?>[] transactionalConstructorParams(Class<?> clazz, Class<?>[] derived) {
+        for (Constructor<?> constructor : clazz.getDeclaredConstructors()) {
+            if (constructor.isAnnotationPresent(TransactionalConstructor.class))
+                return constructor.getParameterTypes();
+        }
+        //if class can have different owners, get class-type of the owner from annotation
+        PolymorphOwner polymorphOwner = clazz.getAnnotation(PolymorphOwner.class);
+        if (polymorphOwner != null && derived.length > 0) {
+            derived = derived.clone();
+            derived[0] = polymorphOwner.commonInterface();
+        }
+        return derived;
     }
 
     private static void throwIfMutable(Class<?> type) {
@@ -287,6 +614,10 @@ public class ClassMetadata {
         }
     }
 
+    enum ContainerType {
+        ARRAY, COLLECTION, MAP
+    }
+
     @Override
     public String toString() {
         StringBuilder strb = new StringBuilder();
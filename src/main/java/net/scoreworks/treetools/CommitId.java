@@ -7,20 +7,29 @@ package net.scoreworks.treetools;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 
 /**
- * Acts like a unique timestamp for {@link net.scoreworks.treetools.commits.Commit}s. Each instantiation increments the id
+ * Acts like a unique timestamp for {@link net.scoreworks.treetools.commits.Commit}s. Each instantiation increments the id.
+ * Commits are ordered by their ids, so unlike {@link ObjectId}s they are drawn from a single counter
  */
 public class CommitId implements Comparable<CommitId> {
-    private static int currentCommitId;
+    private static final AtomicLong currentCommitId = new AtomicLong();
     static void reset() {
-        currentCommitId = 0;
+        currentCommitId.set(0);
     }
     private final long id;
 
     public CommitId() {
-        this.id = currentCommitId;
-        currentCommitId++;
+        this.id = currentCommitId.getAndIncrement();
+    }
+
+    /**
+     * @return the id as primitive, e.g. to key internal tables without keeping the wrapper
+     */
+    public long longValue() {
+        return id;
     }
 
     @Override
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2023 Daniel Maier.
+ * Licensed under the MIT License.
+ */
+
+package net.scoreworks.treetools;
+
+import net.scoreworks.treetools.exceptions.IllegalDataModelException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+
+
+/**
+ * Compiled factory for the transactional constructor of a {@link MutableObject} class. The underlying {@link MethodHandle}
+ * is created once per class by {@link ClassMetadata} and takes the construction parameters as an array, so creating an
+ * object doesn't go through {@link Constructor#newInstance(Object...)} and its access checks each time
+ */
+final class ConstructorAccessor {
+    private static final MethodType FACTORY_TYPE = MethodType.methodType(Object.class, Object[].class);
+
+    private final Class<?> clazz;
+    private final MethodHandle factory;
+
+    ConstructorAccessor(Constructor<?> constructor) {
+        this.clazz = constructor.getDeclaringClass();
+        //access checks are done once here instead of each time an object is constructed
+        constructor.setAccessible(true);
+        try {
+            factory = MethodHandles.lookup().unreflectConstructor(constructor)
+                    .asSpreader(Object[].class, constructor.getParameterCount())
+                    .asType(FACTORY_TYPE);
+        } catch (IllegalAccessException e) {
+            throw new IllegalDataModelException(clazz, "has a transactional constructor that can't be accessed by the transactional system!");
+        }
+    }
+
+    /**
+     * Construct a new object
+     * @param params construction parameters in the order of the transactional constructor. Primitives are unboxed
+     */
+    Object newInstance(Object[] params) {
+        try {
+            return factory.invokeExact(params);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException("Error invoking class constructor for "+clazz.getSimpleName(), t);
+        }
+    }
+}
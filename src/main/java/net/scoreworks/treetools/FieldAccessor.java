@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2023 Daniel Maier.
+ * Licensed under the MIT License.
+ */
+
+package net.scoreworks.treetools;
+
+import net.scoreworks.treetools.exceptions.IllegalDataModelException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+
+/**
+ * Compiled getter and setter for a single field of a {@link MutableObject} class. The underlying {@link MethodHandle}s
+ * are created once per field by {@link ClassMetadata}, so the transactional system doesn't have to go through
+ * {@link Field#get(Object)}, {@link Field#set(Object, Object)} and their access checks for every object it touches.
+ * Like reflective access, setting a field this way does not trigger the change-tracking aspect
+ */
+final class FieldAccessor {
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType BITS_GETTER_TYPE = MethodType.methodType(long.class, Object.class);
+    private static final MethodType BITS_SETTER_TYPE = MethodType.methodType(void.class, Object.class, long.class);
+
+    /**
+     * The described field. Still used as key of the field in {@link Remote.ObjectState#getFields()} and for its name
+     */
+    final Field field;
+
+    /**
+     * Stable index of the field within its class, assigned by {@link ClassMetadata}
+     */
+    final int ordinal;
+
+    /**
+     * True if the field has a primitive type. Values of such fields are stored unboxed, encoded as long
+     */
+    final boolean primitive;
+
+    /**
+     * Index of the field's value in {@link Remote.ObjectState}s. Primitive and reference fields are numbered separately
+     */
+    final int slot;
+
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+
+    /**
+     * Read and write primitive fields encoded as long, without boxing. Null for reference fields
+     */
+    private final MethodHandle bitsGetter, bitsSetter;
+
+    FieldAccessor(Field field, int ordinal, int slot) {
+        this.field = field;
+        this.ordinal = ordinal;
+        this.slot = slot;
+        this.primitive = field.getType().isPrimitive();
+        //access checks are done once here instead of each time the field is accessed
+        field.setAccessible(true);
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle rawGetter = lookup.unreflectGetter(field);
+            MethodHandle rawSetter = lookup.unreflectSetter(field);
+            getter = rawGetter.asType(GETTER_TYPE);
+            setter = rawSetter.asType(SETTER_TYPE);
+            if (primitive) {
+                Class<?> type = field.getType();
+                bitsGetter = MethodHandles.filterReturnValue(rawGetter, lookup.findStatic(FieldAccessor.class, "encode", MethodType.methodType(long.class, type)))
+                        .asType(BITS_GETTER_TYPE);
+                bitsSetter = MethodHandles.filterArguments(rawSetter, 1, lookup.findStatic(FieldAccessor.class, "decode"+capitalized(type), MethodType.methodType(type, long.class)))
+                        .asType(BITS_SETTER_TYPE);
+            }
+            else {
+                bitsGetter = null;
+                bitsSetter = null;
+            }
+        } catch (IllegalAccessException | NoSuchMethodException e) {
+            throw new IllegalDataModelException(field.getDeclaringClass(), "has a field \""+field.getName()+"\" that can't be accessed by the transactional system!");
+        }
+    }
+
+    Object get(Object object) {
+        try {
+            return getter.invokeExact(object);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException("Error reading field "+field.getName()+" of "+object.getClass().getSimpleName(), t);
+        }
+    }
+
+    void set(Object object, Object value) {
+        try {
+            setter.invokeExact(object, value);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException("Error setting field "+field.getName()+" of "+object.getClass().getSimpleName(), t);
+        }
+    }
+
+    /**
+     * Read a primitive field encoded as long
+     */
+    long getBits(Object object) {
+        try {
+            return (long) bitsGetter.invokeExact(object);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException("Error reading field "+field.getName()+" of "+object.getClass().getSimpleName(), t);
+        }
+    }
+
+    /**
+     * Set a primitive field from its long encoding
+     */
+    void setBits(Object object, long bits) {
+        try {
+            bitsSetter.invokeExact(object, bits);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException("Error setting field "+field.getName()+" of "+object.getClass().getSimpleName(), t);
+        }
+    }
+
+    /**
+     * Box the long encoding of a value of this primitive field
+     */
+    Object box(long bits) {
+        Class<?> type = field.getType();
+        if (type == int.class) return decodeInt(bits);
+        if (type == long.class) return bits;
+        if (type == boolean.class) return decodeBoolean(bits);
+        if (type == double.class) return decodeDouble(bits);
+        if (type == float.class) return decodeFloat(bits);
+        if (type == short.class) return decodeShort(bits);
+        if (type == byte.class) return decodeByte(bits);
+        return decodeChar(bits);
+    }
+
+    String getName() {
+        return field.getName();
+    }
+
+    Class<?> getType() {
+        return field.getType();
+    }
+
+    private static String capitalized(Class<?> type) {
+        return Character.toUpperCase(type.getName().charAt(0)) + type.getName().substring(1);
+    }
+
+    //encoding of primitives in a long. Floating point values keep their exact bits
+    private static long encode(boolean value) { return value ? 1 : 0; }
+    private static long encode(byte value) { return value; }
+    private static long encode(short value) { return value; }
+    private static long encode(char value) { return value; }
+    private static long encode(int value) { return value; }
+    private static long encode(long value) { return value; }
+    private static long encode(float value) { return Float.floatToRawIntBits(value); }
+    private static long encode(double value) { return Double.doubleToRawLongBits(value); }
+
+    private static boolean decodeBoolean(long bits) { return bits != 0; }
+    private static byte decodeByte(long bits) { return (byte) bits; }
+    private static short decodeShort(long bits) { return (short) bits; }
+    private static char decodeChar(long bits) { return (char) bits; }
+    private static int decodeInt(long bits) { return (int) bits; }
+    private static long decodeLong(long bits) { return bits; }
+    private static float decodeFloat(long bits) { return Float.intBitsToFloat((int) bits); }
+    private static double decodeDouble(long bits) { return Double.longBitsToDouble(bits); }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2023 Daniel Maier.
+ * Licensed under the MIT License.
+ */
+
+package net.scoreworks.treetools;
+
+import net.scoreworks.treetools.processor.MetadataProcessor;
+
+
+/**
+ * Compile-time analysis of a data model class, implemented by classes the {@link MetadataProcessor} generates next to
+ * the model class. If such a class is found, {@link ClassMetadata} takes fields, containers and the transactional
+ * constructor from it instead of walking the class hierarchy with reflections. Immutability of custom field types was
+ * already validated by the processor and is not checked again at runtime.
+ * Fields are identified by their name and the number of superclass steps from the described class to the class declaring them
+ */
+public interface GeneratedMetadata {
+
+    /**
+     * Suffix appended to the (escaped) binary name of the described class to get the name of the generated class
+     */
+    String CLASS_SUFFIX = "_TreeToolsMetadata";
+
+    /**
+     * @return binary name of the class generated for the class with the given binary name. Within the class name,
+     * '_' is escaped as "__" and the '$' of nested classes as "_0", so a nested class and a top-level class can't
+     * end up with the same generated class
+     */
+    static String classNameOf(String binaryName) {
+        int start = binaryName.lastIndexOf('.') + 1;
+        StringBuilder strb = new StringBuilder(binaryName.length() + CLASS_SUFFIX.length() + 4);
+        strb.append(binaryName, 0, start);
+        for (int i=start; i<binaryName.length(); i++) {
+            char c = binaryName.charAt(i);
+            if (c == '_')
+                strb.append("__");
+            else if (c == '$')
+                strb.append("_0");
+            else strb.append(c);
+        }
+        return strb.append(CLASS_SUFFIX).toString();
+    }
+
+    /**
+     * @return names of all "plain" fields, as collected by {@link ClassMetadata#fields}
+     */
+    String[] fieldNames();
+
+    /**
+     * @return for each entry of {@link GeneratedMetadata#fieldNames()}, the superclass level that declares the field
+     */
+    int[] fieldLevels();
+
+    /**
+     * @return names of all container fields, as collected by {@link ClassMetadata#collections}
+     */
+    String[] collectionNames();
+
+    /**
+     * @return for each entry of {@link GeneratedMetadata#collectionNames()}, the superclass level that declares the field
+     */
+    int[] collectionLevels();
+
+    /**
+     * @return parameter types of the constructor marked with {@link net.scoreworks.treetools.annotations.TransactionalConstructor},
+     * or null if the class doesn't mark one
+     */
+    Class<?>[] constructorParameterTypes();
+
+    /**
+     * @return subclasses registered with {@link net.scoreworks.treetools.annotations.AbstractClass}, or an empty array
+     */
+    Class<?>[] subclasses();
+}
@@ -11,19 +11,26 @@ class History {
     Commit ongoingCommit = new Commit();
     Node initialNode;  //node without commit to mark the start
     Node head;
+    Node last;  //end of the history, beyond the head if redos are available
 
     History() {
         initialNode = new Node(null);
         head = initialNode;
+        last = initialNode;
     }
 
     void createUndoState() {
         if (ongoingCommit.isEmpty())
             return;
         Node node = new Node(ongoingCommit);
+        //redos after the head are dropped, so the totals continue from the head
+        node.undoStates = head.undoStates + 1;
+        node.records = head.records + MemoryReport.records(ongoingCommit);
+        node.bytes = head.bytes + MemoryReport.commitBytes(ongoingCommit);
         head.next = node;
         node.previous = head;
         head = node;
+        last = node;
         //these commits are not inserted into transactionManagers commit list. They get copied, at which time they
         //get their proper id
         ongoingCommit = new Commit();
@@ -40,6 +47,9 @@ class History {
     static class Node {
         Commit self;
         Node previous, next;
+        //totals of the commits from the start of the history up to this node, for the MemoryReport
+        int undoStates, records;
+        long bytes;
 
         public Node(Commit self) {
             this.self = self;
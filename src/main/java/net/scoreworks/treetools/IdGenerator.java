@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2023 Daniel Maier.
+ * Licensed under the MIT License.
+ */
+
+package net.scoreworks.treetools;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Lock-free source of unique ids. Each thread reserves a block of consecutive ids from a shared counter and hands them
+ * out without synchronization, so threads creating ids at the same time only meet once per block. Ids are unique,
+ * but only increase within a single thread.
+ */
+final class IdGenerator {
+    private final AtomicLong counter = new AtomicLong();
+    private final int blockSize;
+
+    /** Next id and end (exclusive) of the block of the calling thread */
+    private final ThreadLocal<long[]> blocks = ThreadLocal.withInitial(() -> new long[2]);
+
+    IdGenerator(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    long next() {
+        long[] block = blocks.get();
+        if (block[0] == block[1]) {
+            block[0] = counter.getAndAdd(blockSize);
+            block[1] = block[0] + blockSize;
+        }
+        return block[0]++;
+    }
+}
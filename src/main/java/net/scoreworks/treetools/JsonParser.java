@@ -5,9 +5,6 @@
 
 package net.scoreworks.treetools;
 
-import net.scoreworks.treetools.annotations.AbstractClass;
-import net.scoreworks.treetools.exceptions.IllegalDataModelException;
-
 import java.lang.reflect.*;
 import java.util.*;
 
@@ -80,98 +77,61 @@ public final class JsonParser {
                 }
             }
 
-            //get content fields
-            Field[] contentFields;
-            if (mo != null)
-                contentFields = ClassMetadata.getFields((MutableObject) object);
-            else
-                contentFields = ClassMetadata.getAllFieldsIncludingInheritedOnes(object.getClass());
-
-            //and loop over them
-            for (Field field : contentFields) {
-                //static or transient field are not considered
-                if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers()))
-                    continue;
-                Object fieldValue = null;
-                try {
-                    field.setAccessible(true);
-                    fieldValue = field.get(object);
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
-                }
-
-                //field is null
-                if (fieldValue == null) {
-                    if(prettyPrinting) newIndentedLine(strb, indentation);
-                    strb.append("\"").append(field.getName()).append("\":null,");
-                    continue;
-                }
-
-                //field is a MutableObject
-                if (fieldValue instanceof MutableObject) {
-                    MutableObject cr = (MutableObject) fieldValue;
-                    if (!createdIDs.containsKey(cr))
-                        createdIDs.put(cr, createdIDs.size());
-                    if(prettyPrinting) newIndentedLine(strb, indentation);
-                    strb.append("\"").append(field.getName()).append("\":").append("|").append(createdIDs.get(cr)).append("|,");
+            //loop over content fields. Fields of MutableObjects are accessed via their compiled accessors
+            if (mo != null) {
+                for (FieldAccessor accessor : ClassMetadata.getFieldAccessors(mo)) {
+                    printField(accessor.getName(), accessor.getType(), accessor.get(mo), indentation);
                 }
-
-                //field is primitive / primitive wrapper / String / Enum / Void / non MutableObject (because MutableObject are children)
-                else {
-                    if(prettyPrinting) newIndentedLine(strb, indentation);
-                    if (ClassMetadata.isComplexObject(field.getType())) {
-                        strb.append("\"").append(field.getName()).append("\":");
-                        printObject(fieldValue, indentation, false);
+            }
+            else {
+                for (Field field : ClassMetadata.getAllFieldsIncludingInheritedOnes(object.getClass())) {
+                    //static or transient field are not considered
+                    if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers()))
+                        continue;
+                    Object fieldValue = null;
+                    try {
+                        field.setAccessible(true);
+                        fieldValue = field.get(object);
+                    } catch (IllegalAccessException e) {
+                        e.printStackTrace();
                     }
-                    //String: parse with quotation marks
-                    else if (fieldValue instanceof String)
-                        strb.append("\"").append(field.getName()).append("\":\"").append(fieldValue).append("\",");
-                    //Enum: parse using Enum.name() method
-                    else if (fieldValue instanceof Enum<?>)
-                        strb.append("\"").append(field.getName()).append("\":").append(((Enum<?>) fieldValue).name()).append(",");
-                    //primitive / primitive wrapper / Void: parse by using Object.toString()
-                    else
-                        strb.append("\"").append(field.getName()).append("\":").append(fieldValue).append(",");
+                    printField(field.getName(), field.getType(), fieldValue, indentation);
                 }
             }
 
             //loop over child fields if object is a DataModelEntity (static and transient fields are not in that list)
             if (mo != null) {
-                for (Field field : ClassMetadata.getCollections(mo)) {
-                    field.setAccessible(true);
-                    try {
-                        //field is null - This is not the same as an empty collection!
-                        if (field.get(mo) == null) {
+                for (FieldAccessor accessor : ClassMetadata.getCollectionAccessors(mo)) {
+                    Object container = accessor.get(mo);
+                    //field is null - This is not the same as an empty collection!
+                    if (container == null) {
+                        if(prettyPrinting) newIndentedLine(strb, indentation);
+                        strb.append("\"").append(accessor.getName()).append("\":null,");
+                    }
+                    //field is an array
+                    else if (accessor.getType().isArray()) {
+                        printArray(accessor.getName(), (MutableObject[]) container, indentation);
+                    }
+                    //field is a collection
+                    else if (Collection.class.isAssignableFrom(accessor.getType())) {
+                        printArray(accessor.getName(), ((Collection<MutableObject>) container).toArray(), indentation);
+                    }
+                    //field is a map
+                    else if (Map.class.isAssignableFrom(accessor.getType())) {
+                        Collection<Child<?>> collection = ((Map<?, Child<?>>) container).values();
+                        if (collection.size() > 0) {
                             if(prettyPrinting) newIndentedLine(strb, indentation);
-                            strb.append("\"").append(field.getName()).append("\":null,");
-                        }
-                        //field is an array
-                        else if (field.getType().isArray()) {
-                            printArray(field, (MutableObject[]) field.get(mo), indentation);
-                        }
-                        //field is a collection
-                        else if (Collection.class.isAssignableFrom(field.getType())) {
-                            printArray(field, ((Collection<MutableObject>)field.get(mo)).toArray(), indentation);
-                        }
-                        //field is a map
-                        else if (Map.class.isAssignableFrom(field.getType())) {
-                            Collection<Child<?>> collection = ((Map<?, Child<?>>)field.get(mo)).values();
-                            if (collection.size() > 0) {
-                                if(prettyPrinting) newIndentedLine(strb, indentation);
-                                strb.append("\"").append(field.getName()).append("\":[");
-                                for (MutableObject dm : collection) {
-                                    printObject(dm, indentation+1, true);
-                                    strb.append(",");
-                                }
-                                strb.setLength(strb.length() - 1);
-                                if(prettyPrinting) newIndentedLine(strb, indentation);
-                                strb.append("],");
+                            strb.append("\"").append(accessor.getName()).append("\":[");
+                            for (MutableObject dm : collection) {
+                                printObject(dm, indentation+1, true);
+                                strb.append(",");
                             }
+                            strb.setLength(strb.length() - 1);
+                            if(prettyPrinting) newIndentedLine(strb, indentation);
+                            strb.append("],");
                         }
-                        else throw new RuntimeException("didn't recognize collection of "+mo.getClass().getSimpleName()+","+field.getName());
-                    } catch (IllegalAccessException e) {
-                        e.printStackTrace();
                     }
+                    else throw new RuntimeException("didn't recognize collection of "+mo.getClass().getSimpleName()+","+accessor.getName());
                 }
             }
 
@@ -183,6 +143,42 @@ public final class JsonParser {
             strb.append("}");
         }
 
+        private void printField(String fieldName, Class<?> fieldType, Object fieldValue, int indentation) {
+            //field is null
+            if (fieldValue == null) {
+                if(prettyPrinting) newIndentedLine(strb, indentation);
+                strb.append("\"").append(fieldName).append("\":null,");
+                return;
+            }
+
+            //field is a MutableObject
+            if (fieldValue instanceof MutableObject) {
+                MutableObject cr = (MutableObject) fieldValue;
+                if (!createdIDs.containsKey(cr))
+                    createdIDs.put(cr, createdIDs.size());
+                if(prettyPrinting) newIndentedLine(strb, indentation);
+                strb.append("\"").append(fieldName).append("\":").append("|").append(createdIDs.get(cr)).append("|,");
+            }
+
+            //field is primitive / primitive wrapper / String / Enum / Void / non MutableObject (because MutableObject are children)
+            else {
+                if(prettyPrinting) newIndentedLine(strb, indentation);
+                if (ClassMetadata.isComplexObject(fieldType)) {
+                    strb.append("\"").append(fieldName).append("\":");
+                    printObject(fieldValue, indentation, false);
+                }
+                //String: parse with quotation marks
+                else if (fieldValue instanceof String)
+                    strb.append("\"").append(fieldName).append("\":\"").append(fieldValue).append("\",");
+                //Enum: parse using Enum.name() method
+                else if (fieldValue instanceof Enum<?>)
+                    strb.append("\"").append(fieldName).append("\":").append(((Enum<?>) fieldValue).name()).append(",");
+                //primitive / primitive wrapper / Void: parse by using Object.toString()
+                else
+                    strb.append("\"").append(fieldName).append("\":").append(fieldValue).append(",");
+            }
+        }
+
         private void printKey(Object key, String fieldName, int indentation) {
             strb.append("'").append(fieldName).append("':");
             if (key instanceof MutableObject) {
@@ -200,10 +196,10 @@ public final class JsonParser {
             strb.append(",");
         }
 
-        private void printArray(Field field, Object[] MOs, int indentation) {
+        private void printArray(String fieldName, Object[] MOs, int indentation) {
             if (MOs.length > 0) {
                 if(prettyPrinting) newIndentedLine(strb, indentation);
-                strb.append("\"").append(field.getName()).append("\":[");
+                strb.append("\"").append(fieldName).append("\":[");
                 for (Object obj : MOs) {
                     printObject(obj, indentation+1, true);
                     strb.append(",");
@@ -250,12 +246,7 @@ public final class JsonParser {
             }
             //handle cross-references at the end
             for (CrossReferenceToDo cr : crossReferences) {
-                cr.ObjectField.setAccessible(true);
-                try {
-                    cr.ObjectField.set(cr.mo, MOs.get(cr.crossReferenceID).mo);
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
-                }
+                cr.objectField.set(cr.mo, MOs.get(cr.crossReferenceID).mo);
             }
         }
 
@@ -275,10 +266,7 @@ public final class JsonParser {
                             currentObj = new ObjectInfo(currentClass);
                             //do polymorphic deserialization
                             if (!currentClass.getSimpleName().equals(pair[1])) {
-                                AbstractClass abst = currentClass.getAnnotation(AbstractClass.class);
-                                if (abst == null)
-                                    throw new IllegalDataModelException(currentClass, "is an abstract class but does not specify its subclasses in the @AbstractClass interface!");
-                                for (Class<?> subClass : abst.subclasses()) {
+                                for (Class<?> subClass : ClassMetadata.getSubclasses(currentClass)) {
                                     if (subClass.getSimpleName().equals(pair[1])) {
                                         currentObj.clazz = subClass;
                                         break;
@@ -385,28 +373,25 @@ public final class JsonParser {
             }
 
             //unwrap content fields
-            for (Field field : ClassMetadata.getFields(info.mo)) {
+            for (FieldAccessor accessor : ClassMetadata.getFieldAccessors(info.mo)) {
                 //field is immutable object
-                ObjectInfo pojo = info.complexObjFields.get(field.getName());
+                ObjectInfo pojo = info.complexObjFields.get(accessor.getName());
                 if (pojo != null) {
-                    field.setAccessible(true);
-                    field.set(info.mo, createNonMutableObject(pojo));
+                    accessor.set(info.mo, createNonMutableObject(pojo));
                     continue;
                 }
-                String value = info.fields.get(field.getName());
+                String value = info.fields.get(accessor.getName());
                 if (value.equals("null")) {
-                    field.setAccessible(true);
-                    field.set(info.mo, null);
+                    accessor.set(info.mo, null);
                     continue;
                 }
                 //field is another MutableObject
                 if (stringEnclosedBy(value, '|')) {
-                    crossReferences.add(new CrossReferenceToDo(info.mo, parseToID(value), field));
+                    crossReferences.add(new CrossReferenceToDo(info.mo, parseToID(value), accessor));
                     continue;
                 }
                 //set the field
-                field.setAccessible(true);
-                field.set(info.mo, parseToPrimitiveWrapper(field.getType(), value));
+                accessor.set(info.mo, parseToPrimitiveWrapper(accessor.getType(), value));
             }
             creationChores.remove(info.uniqueID);
         }
@@ -432,7 +417,7 @@ public final class JsonParser {
         } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
             e.printStackTrace();
         }
-        return object;
+        return ValueInterner.intern(object);
     }
 
     private static class ObjectInfo {
@@ -454,11 +439,11 @@ public final class JsonParser {
     private static class CrossReferenceToDo {
         MutableObject mo;
         int crossReferenceID;
-        Field ObjectField;
-        CrossReferenceToDo(MutableObject mo, int crossReferenceID, Field ObjectField) {
+        FieldAccessor objectField;
+        CrossReferenceToDo(MutableObject mo, int crossReferenceID, FieldAccessor objectField) {
             this.mo = mo;
             this.crossReferenceID = crossReferenceID;
-            this.ObjectField = ObjectField;
+            this.objectField = objectField;
         }
     }
 
@@ -481,6 +466,11 @@ public final class JsonParser {
 
     @SuppressWarnings("unchecked")
     private static <T> T parseToPrimitiveWrapper(Class<T> clazz, String string) {
+        return (T) ValueInterner.intern(parseValue(clazz, string));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T parseValue(Class<T> clazz, String string) {
         if (string.equals("null"))
             return null;
         // add some null-handling logic here? and empty values.
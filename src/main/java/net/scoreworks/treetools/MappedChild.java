@@ -39,7 +39,7 @@ public abstract class MappedChild<O extends MutableObject, K> extends Child<O> {
     @Override
     public Object[] constructorParameterStates(Remote remote) {
         if (key instanceof MutableObject)
-            return new Object[]{remote.getLogicalObjectKeyOfOwner(this), remote.getKey(key)};
+            return new Object[]{remote.getLogicalObjectKeyOfOwner(this), remote.getKey((MutableObject) key)};
         else    //any immutable object act as their own state in the transactional system
             return new Object[]{remote.getLogicalObjectKeyOfOwner(this), key};
     }
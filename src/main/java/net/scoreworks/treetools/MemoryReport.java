@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2023 Daniel Maier.
+ * Licensed under the MIT License.
+ */
+
+package net.scoreworks.treetools;
+
+import net.scoreworks.treetools.commits.Commit;
+
+import java.util.*;
+
+
+/**
+ * Estimate of the memory retained by the transactional system, created by {@link TransactionManager#getMemoryReport()}.
+ * Sizes are shallow estimates for a 64-bit JVM with compressed references: they cover states, records and index
+ * structures, but not the immutable values referenced by states, which are shared with the data model. States recorded
+ * in commits or the history are usually also held by a remote, so the sums of the sections overlap.
+ */
+public final class MemoryReport {
+    //shallow sizes in bytes
+    static final int HEADER = 12, REFERENCE = 4, ARRAY_HEADER = 16;
+    static final int STATE = align(HEADER + 6*REFERENCE + 4);
+    static final int OBJECT_ID = align(HEADER + 8);
+    /** Entry of a HashMap/HashSet plus its share of the table */
+    static final int HASH_ENTRY = align(HEADER + 3*REFERENCE + 4) + 2*REFERENCE;
+
+    private final List<RemoteUsage> remotes;
+    private final int commits;
+    private final int commitRecords;
+    private final long commitBytes;
+    private final int historyStates;
+    private final int historyRecords;
+    private final long historyBytes;
+
+    MemoryReport(List<RemoteUsage> remotes, int commits, int commitRecords, long commitBytes, int historyStates, int historyRecords, long historyBytes) {
+        this.remotes = Collections.unmodifiableList(remotes);
+        this.commits = commits;
+        this.commitRecords = commitRecords;
+        this.commitBytes = commitBytes;
+        this.historyStates = historyStates;
+        this.historyRecords = historyRecords;
+        this.historyBytes = historyBytes;
+    }
+
+    /**
+     * @return usage of the remote of each {@link Repository}
+     */
+    public List<RemoteUsage> getRemotes() {
+        return remotes;
+    }
+
+    /**
+     * @return number of commits retained by the {@link TransactionManager} because some repository hasn't pulled them yet
+     */
+    public int getCommits() {
+        return commits;
+    }
+
+    /**
+     * @return number of creation, deletion and change records in the retained commits
+     */
+    public int getCommitRecords() {
+        return commitRecords;
+    }
+
+    public long getEstimatedCommitBytes() {
+        return commitBytes;
+    }
+
+    /**
+     * @return number of undo states on the history, 0 if undo/redo is not enabled
+     */
+    public int getHistoryStates() {
+        return historyStates;
+    }
+
+    /**
+     * @return number of records in the history, including the ongoing (not yet archived) commit
+     */
+    public int getHistoryRecords() {
+        return historyRecords;
+    }
+
+    public long getEstimatedHistoryBytes() {
+        return historyBytes;
+    }
+
+    /**
+     * @return sum of all estimates
+     */
+    public long getEstimatedTotalBytes() {
+        long total = commitBytes + historyBytes;
+        for (RemoteUsage remote : remotes)
+            total += remote.getEstimatedBytes();
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder strb = new StringBuilder();
+        for (RemoteUsage remote : remotes)
+            strb.append(remote).append("\n");
+        strb.append("commits: ").append(commits).append(" with ").append(commitRecords).append(" records, ~").append(commitBytes).append(" bytes\n");
+        strb.append("history: ").append(historyStates).append(" undo states with ").append(historyRecords).append(" records, ~").append(historyBytes).append(" bytes");
+        return strb.toString();
+    }
+
+    /**
+     * Memory used by the remote of a single {@link Repository}
+     */
+    public static final class RemoteUsage {
+        private final RootEntity rootEntity;
+        private final int states;
+        private final long indexBytes;
+        private final Map<Class<?>, Long> stateBytesByClass;
+        private final int snapshots;
+
+        RemoteUsage(RootEntity rootEntity, int states, long indexBytes, Map<Class<?>, Long> stateBytesByClass, int snapshots) {
+            this.rootEntity = rootEntity;
+            this.states = states;
+            this.indexBytes = indexBytes;
+            this.stateBytesByClass = Collections.unmodifiableMap(stateBytesByClass);
+            this.snapshots = snapshots;
+        }
+
+        public RootEntity getRootEntity() {
+            return rootEntity;
+        }
+
+        /**
+         * @return number of states held by the remote
+         */
+        public int getStates() {
+            return states;
+        }
+
+        /**
+         * @return estimated size of the structure linking objects and states
+         */
+        public long getEstimatedIndexBytes() {
+            return indexBytes;
+        }
+
+        /**
+         * @return estimated size of the held states by the class they describe
+         */
+        public Map<Class<?>, Long> getEstimatedStateBytesByClass() {
+            return stateBytesByClass;
+        }
+
+        /**
+         * @return number of retained {@link RemoteSnapshot}s, 0 if snapshots are not enabled
+         */
+        public int getSnapshots() {
+            return snapshots;
+        }
+
+        public long getEstimatedBytes() {
+            long total = indexBytes;
+            for (long bytes : stateBytesByClass.values())
+                total += bytes;
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            return rootEntity.getClass().getSimpleName() + " remote: " + states + " states, ~" + getEstimatedBytes() + " bytes";
+        }
+    }
+
+
+    //==========ESTIMATES====================================================
+
+    static int align(long bytes) {
+        return (int) ((bytes + 7) & ~7);
+    }
+
+    static long arrayBytes(int elementSize, int length) {
+        return align(ARRAY_HEADER + (long) elementSize * length);
+    }
+
+    /**
+     * Estimate records of a commit from the size of its record sets and the state bytes it counted while recording.
+     * States already counted for another record of the same report are not excluded
+     */
+    static long commitBytes(Commit commit) {
+        //a change is held by both sides of a bidirectional map
+        int entries = commit.getCreationRecords().size() + commit.getDeletionRecords().size() + 2*commit.getChangeRecords().size();
+        return align(HEADER + 4*REFERENCE + 8) + (long) entries * HASH_ENTRY + commit.getEstimatedStateBytes();
+    }
+
+    static int records(Commit commit) {
+        return commit.getCreationRecords().size() + commit.getDeletionRecords().size() + commit.getChangeRecords().size();
+    }
+}
@@ -9,18 +9,34 @@ import org.jetbrains.annotations.NotNull;
 
 
 /**
- * Acts as a unique id for every created object across all {@link Repository}s. Each instantiation increments the id
+ * Acts as a unique id for every created object across all {@link Repository}s. Ids are taken from per-thread blocks,
+ * so threads creating states at the same time, e.g. while building a {@link Remote} in parallel, don't contend
  */
 public class ObjectId implements Comparable<ObjectId> {
-    private static int currentObjectId;
+    private static final int BLOCK_SIZE = 1024;
+    private static volatile IdGenerator ids = new IdGenerator(BLOCK_SIZE);
     static void reset() {
-        currentObjectId = 0;
+        //blocks already handed to threads belong to the old generator and are dropped with it
+        ids = new IdGenerator(BLOCK_SIZE);
     }
-    private final long id;
+    final long id;
 
     public ObjectId() {
-        this.id = currentObjectId;
-        currentObjectId++;
+        this.id = ids.next();
+    }
+
+    /**
+     * Wrap a given id instead of drawing a new one
+     */
+    ObjectId(long id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the id as primitive, e.g. to key internal tables without keeping the wrapper
+     */
+    public long longValue() {
+        return id;
     }
 
     @Override
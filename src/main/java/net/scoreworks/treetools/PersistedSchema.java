@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2023 Daniel Maier.
+ * Licensed under the MIT License.
+ */
+
+package net.scoreworks.treetools;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.util.*;
+
+
+/**
+ * Compact binary file format for the analysis results of {@link ClassMetadata}, used to skip the reflective analysis
+ * and validation of a data model on the next JVM start. Each entry is stored with a fingerprint of the class files of
+ * the class hierarchy. An entry is only used if the fingerprint still matches the loaded class, otherwise the class
+ * is analyzed normally.
+ */
+final class PersistedSchema {
+    private static final int MAGIC = 0x54524545;    //"TREE"
+    private static final int VERSION = 2;
+
+    /**
+     * Fingerprint of classes whose class files can't be read. Entries with it are never used
+     */
+    private static final long NO_FINGERPRINT = 0;
+
+    private static final Map<String, Class<?>> PRIMITIVES = new HashMap<>();
+    static {
+        for (Class<?> primitive : new Class<?>[]{boolean.class, byte.class, char.class, short.class, int.class, long.class, float.class, double.class})
+            PRIMITIVES.put(primitive.getName(), primitive);
+    }
+
+    /**
+     * Loaded entries by class name
+     */
+    private final Map<String, Entry> entries;
+
+    private PersistedSchema(Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Get the persisted analysis of a class, or null if there is none or the class changed since it was written
+     */
+    GeneratedMetadata get(Class<?> clazz) {
+        Entry entry = entries.get(clazz.getName());
+        if (entry == null || entry.fingerprint == NO_FINGERPRINT || entry.fingerprint != fingerprint(clazz))
+            return null;
+        entry.resolve(clazz.getClassLoader());
+        return entry;
+    }
+
+    static PersistedSchema read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException(file + " is not a schema file of this version");
+            int size = in.readInt();
+            Map<String, Entry> entries = new HashMap<>(size * 2);
+            for (int i=0; i<size; i++) {
+                Entry entry = new Entry(in.readUTF(), in.readLong());
+                entry.fieldNames = readStrings(in);
+                entry.fieldLevels = readInts(in);
+                entry.collectionNames = readStrings(in);
+                entry.collectionLevels = readInts(in);
+                entry.constructorParameterNames = in.readBoolean() ? readStrings(in) : null;
+                entry.subclassNames = readStrings(in);
+                entries.put(entry.className, entry);
+            }
+            return new PersistedSchema(entries);
+        }
+    }
+
+    /**
+     * Write the analysis of all given classes, ordered by class name so the same model always gives the same file
+     * @param analyzed described classes with their metadata
+     * @param subclasses registered subclasses of abstract classes
+     */
+    static void write(File file, Iterable<ClassMetadata> analyzed, Map<Class<?>, Class<?>[]> subclasses) throws IOException {
+        Map<Class<?>, Entry> entries = new HashMap<>();
+        for (ClassMetadata info : analyzed) {
+            Entry entry = entryOf(entries, info.clazz);
+            entry.fieldNames = new String[info.fields.length];
+            entry.fieldLevels = new int[info.fields.length];
+            for (int i=0; i<info.fields.length; i++) {
+                entry.fieldNames[i] = info.fields[i].getName();
+                entry.fieldLevels[i] = levelOf(info.clazz, info.fields[i]);
+            }
+            entry.collectionNames = new String[info.collections.length];
+            entry.collectionLevels = new int[info.collections.length];
+            for (int i=0; i<info.collections.length; i++) {
+                entry.collectionNames[i] = info.collections[i].getName();
+                entry.collectionLevels[i] = levelOf(info.clazz, info.collections[i]);
+            }
+            entry.constructorParameterNames = namesOf(info.constructor.getParameterTypes());
+        }
+        for (Map.Entry<Class<?>, Class<?>[]> registered : subclasses.entrySet())
+            entryOf(entries, registered.getKey()).subclassNames = namesOf(registered.getValue());
+
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparing(entry -> entry.className));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+            for (Entry entry : sorted) {
+                out.writeUTF(entry.className);
+                out.writeLong(entry.fingerprint);
+                writeStrings(out, entry.fieldNames);
+                writeInts(out, entry.fieldLevels);
+                writeStrings(out, entry.collectionNames);
+                writeInts(out, entry.collectionLevels);
+                out.writeBoolean(entry.constructorParameterNames != null);
+                if (entry.constructorParameterNames != null)
+                    writeStrings(out, entry.constructorParameterNames);
+                writeStrings(out, entry.subclassNames);
+            }
+        }
+    }
+
+    /**
+     * Hash over the class files of the class and its superclasses up to the TreeTools classes. These contain everything
+     * the analysis depends on (fields, constructors and annotations), so any change to them invalidates the entry.
+     * Unlike the analysis, this neither creates reflection objects nor validates the types of custom fields
+     * @return the hash, or {@link PersistedSchema#NO_FINGERPRINT} if a class file can't be read
+     */
+    static long fingerprint(Class<?> clazz) {
+        long hash = 0xcbf29ce484222325L;    //64-bit FNV-1a
+        byte[] buffer = new byte[4096];
+        Package transactionPackage = MutableObject.class.getPackage();
+        for (Class<?> iterator = clazz; iterator != null && iterator != Object.class && iterator.getPackage() != transactionPackage; iterator = iterator.getSuperclass()) {
+            String name = iterator.getName();
+            try (InputStream in = iterator.getResourceAsStream(name.substring(name.lastIndexOf('.')+1) + ".class")) {
+                if (in == null)
+                    return NO_FINGERPRINT;
+                for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                    for (int i=0; i<read; i++)
+                        hash = (hash ^ (buffer[i] & 0xff)) * 0x100000001b3L;
+                }
+            } catch (IOException e) {
+                return NO_FINGERPRINT;
+            }
+        }
+        return hash == NO_FINGERPRINT ? 1 : hash;
+    }
+
+
+    //==========PRIVATE METHODS====================================================
+
+    private static Entry entryOf(Map<Class<?>, Entry> entries, Class<?> clazz) {
+        Entry entry = entries.get(clazz);
+        if (entry == null) {
+            entry = new Entry(clazz.getName(), fingerprint(clazz));
+            entries.put(clazz, entry);
+        }
+        return entry;
+    }
+
+    private static int levelOf(Class<?> clazz, Field field) {
+        int level = 0;
+        for (Class<?> iterator = clazz; iterator != field.getDeclaringClass(); iterator = iterator.getSuperclass())
+            level++;
+        return level;
+    }
+
+    private static String[] namesOf(Class<?>[] classes) {
+        String[] names = new String[classes.length];
+        for (int i=0; i<classes.length; i++)
+            names[i] = classes[i].getName();
+        return names;
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String string : strings)
+            out.writeUTF(string);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] ints) throws IOException {
+        out.writeInt(ints.length);
+        for (int i : ints)
+            out.writeInt(i);
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i=0; i<strings.length; i++)
+            strings[i] = in.readUTF();
+        return strings;
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] ints = new int[in.readInt()];
+        for (int i=0; i<ints.length; i++)
+            ints[i] = in.readInt();
+        return ints;
+    }
+
+    private static final class Entry implements GeneratedMetadata {
+        final String className;
+        final long fingerprint;
+        String[] fieldNames = new String[0];
+        int[] fieldLevels = new int[0];
+        String[] collectionNames = new String[0];
+        int[] collectionLevels = new int[0];
+        String[] constructorParameterNames;
+        String[] subclassNames = new String[0];
+
+        //resolved on first use
+        private volatile Class<?>[] constructorParameterTypes;
+        private volatile Class<?>[] subclasses;
+
+        Entry(String className, long fingerprint) {
+            this.className = className;
+            this.fingerprint = fingerprint;
+        }
+
+        void resolve(ClassLoader loader) {
+            if (subclasses != null)
+                return;
+            try {
+                if (constructorParameterNames != null)
+                    constructorParameterTypes = classesOf(constructorParameterNames, loader);
+                subclasses = classesOf(subclassNames, loader);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("persisted schema of "+className+" references a missing class", e);
+            }
+        }
+
+        private static Class<?>[] classesOf(String[] names, ClassLoader loader) throws ClassNotFoundException {
+            Class<?>[] classes = new Class<?>[names.length];
+            for (int i=0; i<names.length; i++) {
+                classes[i] = PRIMITIVES.get(names[i]);
+                if (classes[i] == null)
+                    classes[i] = Class.forName(names[i], false, loader);
+            }
+            return classes;
+        }
+
+        @Override
+        public String[] fieldNames() {
+            return fieldNames;
+        }
+        @Override
+        public int[] fieldLevels() {
+            return fieldLevels;
+        }
+        @Override
+        public String[] collectionNames() {
+            return collectionNames;
+        }
+        @Override
+        public int[] collectionLevels() {
+            return collectionLevels;
+        }
+        @Override
+        public Class<?>[] constructorParameterTypes() {
+            return constructorParameterTypes;
+        }
+        @Override
+        public Class<?>[] subclasses() {
+            return subclasses;
+        }
+    }
+}
@@ -8,7 +8,6 @@ package net.scoreworks.treetools;
 import net.scoreworks.treetools.commits.Commit;
 import net.scoreworks.treetools.exceptions.TransactionException;
 
-import java.lang.reflect.Field;
 import java.util.*;
 
 import static net.scoreworks.treetools.TransactionManager.verbose;
@@ -25,9 +24,10 @@ public class Pull {
      */
     public Pull(Repository repository, Commit commit) {
         repository.ongoingPull = true;
-        //copy creation- and changeRecords to get collections to cross things off
-        creationChores = new HashSet<>(commit.getCreationRecords());
-        changeChores = new HashMap<>(commit.getChangeRecords());
+        //copy creation- and changeRecords to get collections to cross things off. Both keep the order of the commit,
+        //so objects are created and changed in the same order in every repository
+        creationChores = new LinkedHashSet<>(commit.getCreationRecords());
+        changeChores = new LinkedHashMap<>(commit.getChangeRecords());
         Set<Remote.ObjectState> deletionChores = commit.getDeletionRecords();   //here no copying required
         remote = repository.remote;
 
@@ -47,39 +47,29 @@ public class Pull {
         Remote.ObjectState creationRecord;
         while (!creationChores.isEmpty()) {
             creationRecord = creationChores.iterator().next();
-            try {
-                pullCreationRecord(creationRecord);
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            }
+            pullCreationRecord(creationRecord);
         }
         //CHANGE - No recursion
         Map.Entry<Remote.ObjectState, Remote.ObjectState> changeRecord;
         while (!changeChores.isEmpty()) {
             changeRecord = changeChores.entrySet().iterator().next();
-            try {
-                pullChangeRecord(changeRecord.getKey(), changeRecord.getValue());
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            }
+            pullChangeRecord(changeRecord.getKey(), changeRecord.getValue());
         }
 
         //at last, apply the actual changes when all objects are created and accessible via remote
-        try {
-            for (Remote.ObjectState state : commit.getCreationRecords()) {
-                applyState(state);
-            }
-            for (Remote.ObjectState state : commit.getChangeRecords().values()) {
-                applyState(state);
-                remote.get(state).notifyRegisteredWrappersAboutChange();
-            }
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
+        for (Remote.ObjectState state : commit.getCreationRecords()) {
+            applyState(state);
+        }
+        for (Map.Entry<Remote.ObjectState, Remote.ObjectState> entry : commit.getChangeRecords().entrySet()) {
+            applyChange(entry.getKey(), entry.getValue());
+            remote.get(entry.getValue()).notifyRegisteredWrappersAboutChange();
         }
 
         //finalize the pull
-        if (commit.getCommitId() != null)
+        if (commit.getCommitId() != null) {
             repository.currentCommitId = commit.getCommitId();
+            repository.recordSnapshot();
+        }
         repository.ongoingPull = false;
     }
 
@@ -87,40 +77,51 @@ public class Pull {
      * creates an object from a creation record and put its key into the {@link Remote}
      * @param objKey key of the object to be created
      */
-    private void pullCreationRecord(Remote.ObjectState objKey) throws IllegalAccessException {
-        if (verbose) System.out.println(">creating "+objKey.clazz.getSimpleName()+"["+objKey.hashCode()+"]");
-        //parse construction params into array
-        Object[] constructionParams = objKey.getConstructionParams();
-        Object[] params = new Object[constructionParams.length];
-        for (int i=0; i<constructionParams.length; i++) {
-            Object key = constructionParams[i];
-            //MutableObjects need to be resolved to their objects which may need to be created/changed themselves
-            if (key instanceof Remote.ObjectState) {
-                Remote.ObjectState state = (Remote.ObjectState) key;
-                if (creationChores.contains(state)) {
-                    pullCreationRecord(state);
+    private void pullCreationRecord(Remote.ObjectState first) {
+        //creation records whose construction params must be created first are kept on a stack instead of recursing
+        List<Remote.ObjectState> pending = new ArrayList<>();
+        pending.add(first);
+        nextRecord:
+        while (!pending.isEmpty()) {
+            Remote.ObjectState objKey = pending.get(pending.size()-1);
+            Object[] constructionParams = objKey.getConstructionParams();
+            //MutableObjects need to be resolved to their objects which may need to be created themselves
+            for (Object key : constructionParams) {
+                if (key instanceof Remote.ObjectState && creationChores.contains(key)) {
+                    pending.add((Remote.ObjectState) key);
+                    continue nextRecord;
                 }
-                //check if state exists in changeRecords as after
-                else if (changeChores.containsValue(state)) {
-                    pullChangeRecord(state, changeChores.get(state));
-                }
-                //now object can be safely accessed via remote
-                params[i] = remote.get(key);
-                if (params[i] == null)
-                    throw new TransactionException("remote didn't contain "+state.clazz.getSimpleName()+" with id["+key.hashCode()+"] needed during creation of "+objKey.clazz.getSimpleName(), objKey.hashCode());
             }
-            //object is immutable, no parsing needed
-            else {
-                params[i] = key;
+            if (verbose) System.out.println(">creating "+objKey.clazz.getSimpleName()+"["+objKey.hashCode()+"]");
+            //parse construction params into array
+            Object[] params = new Object[constructionParams.length];
+            for (int i=0; i<constructionParams.length; i++) {
+                Object key = constructionParams[i];
+                if (key instanceof Remote.ObjectState) {
+                    Remote.ObjectState state = (Remote.ObjectState) key;
+                    //check if state exists in changeRecords as after
+                    if (changeChores.containsValue(state)) {
+                        pullChangeRecord(state, changeChores.get(state));
+                    }
+                    //now object can be safely accessed via remote
+                    params[i] = remote.get(state);
+                    if (params[i] == null)
+                        throw new TransactionException("remote didn't contain "+state.clazz.getSimpleName()+" with id["+key.hashCode()+"] needed during creation of "+objKey.clazz.getSimpleName(), objKey.hashCode());
+                }
+                //object is immutable, no parsing needed
+                else {
+                    params[i] = key;
+                }
             }
+            //construct the object
+            Child<?> objectToCreate = ClassMetadata.construct(objKey.clazz, params);
+            remote.put(objKey, objectToCreate);
+            creationChores.remove(objKey);
+            pending.remove(pending.size()-1);
         }
-        //construct the object
-        Child<?> objectToCreate = ClassMetadata.construct(objKey.clazz, params);
-        remote.put(objKey, objectToCreate);
-        creationChores.remove(objKey);
     }
 
-    private void pullChangeRecord(Remote.ObjectState before, Remote.ObjectState after) throws IllegalAccessException {
+    private void pullChangeRecord(Remote.ObjectState before, Remote.ObjectState after) {
         if (verbose) System.out.println(">changing "+before.clazz.getSimpleName()+"["+before.hashCode()+"] -> ["+after.hashCode()+"]");
         MutableObject objectToChange = remote.get(before);
         if (objectToChange == null)
@@ -129,26 +130,37 @@ public class Pull {
         changeChores.remove(after);
     }
 
-    private void applyState(Remote.ObjectState state) throws IllegalAccessException {
+    private void applyState(Remote.ObjectState state) {
         MutableObject mo = remote.get(state);
-        for (Field field : ClassMetadata.getFields(mo)) {
-            if (state.getFields().containsKey(field)) {
-                field.setAccessible(true);
-                Object value = state.getFields().get(field);
-                if (value instanceof Remote.ObjectState) {
-                    Remote.ObjectState referencedState = (Remote.ObjectState) value;
-                    MutableObject referencedObject = remote.get(referencedState);
-                    if (referencedObject == null)
-                        throw new TransactionException("can't find "+referencedState.clazz.getSimpleName()+"["+referencedState.hashCode()+"] in remote, cross referenced by "+remote.getKey(mo).clazz.getSimpleName(), remote.getKey(mo).hashCode());
-                    field.setAccessible(true);
-                    try {
-                        field.set(mo, referencedObject);
-                    } catch (IllegalAccessException e) {
-                        e.printStackTrace();
-                    }
-                }
-                else field.set(mo, value);
-            }
+        //states hold their values in the slots assigned to the accessors of their class
+        for (FieldAccessor accessor : ClassMetadata.getFieldAccessors(mo))
+            applyField(mo, state, accessor);
+    }
+
+    /**
+     * Apply only the fields that differ between the states of a change record. The object is in the before state
+     */
+    private void applyChange(Remote.ObjectState before, Remote.ObjectState after) {
+        MutableObject mo = remote.get(after);
+        for (FieldAccessor accessor : ClassMetadata.getFieldAccessors(mo)) {
+            if (!after.sameValue(before, accessor))
+                applyField(mo, after, accessor);
+        }
+    }
+
+    private void applyField(MutableObject mo, Remote.ObjectState state, FieldAccessor accessor) {
+        if (accessor.primitive) {
+            accessor.setBits(mo, state.getPrimitive(accessor));
+            return;
+        }
+        Object value = state.getReference(accessor.slot);
+        if (value instanceof Remote.ObjectState) {
+            Remote.ObjectState referencedState = (Remote.ObjectState) value;
+            MutableObject referencedObject = remote.get(referencedState);
+            if (referencedObject == null)
+                throw new TransactionException("can't find "+referencedState.clazz.getSimpleName()+"["+referencedState.hashCode()+"] in remote, cross referenced by "+remote.getKey(mo).clazz.getSimpleName(), remote.getKey(mo).hashCode());
+            accessor.set(mo, referencedObject);
         }
+        else accessor.set(mo, value);
     }
 }
@@ -6,31 +6,155 @@
 package net.scoreworks.treetools;
 
 import net.scoreworks.treetools.exceptions.TransactionException;
-import org.apache.commons.collections4.MapUtils;
-import org.apache.commons.collections4.bidimap.DualHashBidiMap;
 
 import java.lang.reflect.Field;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 
 /**
  * A data structure providing a two-way link between {@link MutableObject}s and corresponding
  * {@link ObjectState}s (at a particular {@link CommitId}). Because {@link ObjectState}s are immutable, this
  * acts as a remote state the data model can revert to while uncommitted changes exist.
+ * States are indexed by their {@link ObjectId} in an open-addressing table of parallel arrays, objects by identity.
+ * Neither direction allocates entry objects or calls hashCode() of data model classes.
  */
-public class Remote extends DualHashBidiMap<Remote.ObjectState, MutableObject> {
+public class Remote {
+    /**
+     * Field values of states are stored in chunks of this many slots
+     */
+    static final int CHUNK_BITS = 3;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final Object[][] NO_REFERENCES = new Object[0][];
+    private static final long[][] NO_PRIMITIVES = new long[0][];
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Open-addressing table (linear probing) keyed by {@link ObjectId}. A slot is empty if its state is null
+     */
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private ObjectState[] states = new ObjectState[INITIAL_CAPACITY];
+    private MutableObject[] objects = new MutableObject[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Reverse index. Uses identity so that hashCode() and equals() of data model classes are never involved
+     */
+    private final IdentityHashMap<MutableObject, ObjectState> statesByObject = new IdentityHashMap<>();
+
+    /**
+     * Estimated size of the held states per described class, kept up to date by every change of the table. Can be
+     * read by {@link TransactionManager#getMemoryReport()} while the remote changes
+     */
+    private final ConcurrentHashMap<Class<?>, AtomicLong> stateBytes = new ConcurrentHashMap<>();
+
+    /**
+     * Persistent version of the held states, only maintained once {@link Remote#enableSnapshots()} was called
+     */
+    private RemoteSnapshot snapshot;
+
+    /**
+     * Objects whose states were put into the remote, but whose construction params and fields still need to be
+     * assigned. Working through this list instead of recursing keeps long chains of cross-references and deep
+     * ownership trees from growing the stack
+     */
+    private final ArrayList<MutableObject> unresolved = new ArrayList<>();
 
     Remote(RootEntity rootEntity) {
-        buildRemote(this, rootEntity);
+        this(rootEntity, false);
+    }
+
+    /**
+     * @param lazy if true, only the state of the root entity is created up front. States of all other objects are
+     *             created on demand by the owning {@link Repository}
+     */
+    Remote(RootEntity rootEntity, boolean lazy) {
+        if (lazy)
+            createObjectState(rootEntity);
+        else if (TransactionManager.getInstance().parallelRemoteBuilding)
+            buildRemoteInParallel(rootEntity);
+        else buildRemote(rootEntity);
+    }
+    private void buildRemote(RootEntity rootEntity) {
+        ArrayList<MutableObject> worklist = new ArrayList<>();
+        Consumer<Child<?>> collect = worklist::add;
+        worklist.add(rootEntity);
+        while (!worklist.isEmpty()) {
+            MutableObject mo = worklist.remove(worklist.size()-1);
+            createObjectState(mo);
+            ClassMetadata.forEachChild(mo, collect);
+        }
+    }
+
+    /**
+     * Build the remote on the common fork-join pool. States of the ownership tree are created by tasks that split off
+     * pending subtrees whenever workers are idle, while references to other objects are left in place. Indexing the
+     * states is the only sequential step. Afterwards, the states are linked to each other in parallel, as the index
+     * is only read from then on
+     */
+    private void buildRemoteInParallel(RootEntity rootEntity) {
+        ConcurrentLinkedQueue<BuildTask> tasks = new ConcurrentLinkedQueue<>();
+        ArrayList<MutableObject> roots = new ArrayList<>();
+        roots.add(rootEntity);
+        ForkJoinPool.commonPool().invoke(new BuildTask(roots, tasks));
+
+        int count = 0;
+        for (BuildTask task : tasks)
+            count += task.objects.size();
+        ObjectState[] created = new ObjectState[count];
+        int n = 0;
+        for (BuildTask task : tasks) {
+            for (int i=0; i<task.objects.size(); i++) {
+                //an object held twice by its owner is visited twice, keep its first state
+                if (statesByObject.containsKey(task.objects.get(i)))
+                    continue;
+                created[n++] = task.created.get(i);
+                put(task.created.get(i), task.objects.get(i));
+            }
+        }
+
+        int[] incomplete = IntStream.range(0, n).parallel()
+                .filter(i -> !link(created[i], statesByObject::get))
+                .toArray();
+        //referenced objects outside the ownership tree get their states the sequential way
+        for (int i : incomplete)
+            link(created[i], this::stateOf);
+        resolveStates();
     }
-    private void buildRemote(Remote remote, MutableObject mo) {
-        remote.createObjectState(mo);
-        ArrayList<Child<?>> children = ClassMetadata.getChildren(mo);
-        for (Child<?> child : children) {
-            buildRemote(remote, child);
+
+    /**
+     * Creates the states of a part of the ownership tree. Results are collected by the task, not put into the remote
+     */
+    private final class BuildTask extends SubtreeTask {
+        private final ConcurrentLinkedQueue<BuildTask> tasks;
+
+        final ArrayList<MutableObject> objects = new ArrayList<>();
+        final ArrayList<ObjectState> created = new ArrayList<>();
+
+        BuildTask(ArrayList<MutableObject> worklist, ConcurrentLinkedQueue<BuildTask> tasks) {
+            super(worklist);
+            this.tasks = tasks;
+            tasks.add(this);
+        }
+
+        @Override
+        SubtreeTask newTask(ArrayList<MutableObject> worklist) {
+            return new BuildTask(worklist, tasks);
+        }
+
+        @Override
+        void visit(MutableObject mo) {
+            ObjectState objectState = new ObjectState(ClassMetadata.getMetadata(mo), mo.constructorParameterObjects(), new ObjectId(), null);
+            capture(mo, objectState);
+            objects.add(mo);
+            created.add(objectState);
         }
     }
 
@@ -40,40 +164,283 @@ public class Remote extends DualHashBidiMap<Remote.ObjectState, MutableObject> {
      * @param mo object to create the logical key for
      */
     public ObjectState createObjectState(MutableObject mo) {
-        //avoid creating duplicate states for same object within a remote. This also avoids infinite recursion when
+        //avoid creating duplicate states for same object within a remote. This also avoids infinite loops when
         //two cross-references point at each other!
-        if (containsValue(mo)) {
-            return getKey(mo);
-        }
-        ObjectState objectState = new ObjectState(mo.getClass(), mo.constructorParameterObjects(), new ObjectId());
-        put(objectState, mo);
-        assignFieldsToObjectState(objectState, mo);
+        ObjectState objectState = stateOf(mo);
+        resolveStates();
         return objectState;
     }
 
+    /**
+     * Replace the state of an object with one describing its current content. The new state shares every chunk of
+     * field values that didn't change with the old state, so it only costs memory in the order of the written fields
+     */
     public ObjectState updateObjectState(MutableObject mo, ObjectState oldState) {
-        ObjectState objectState = new ObjectState(mo.getClass(), mo.constructorParameterObjects(), oldState.objectId);
+        return updateObjectState(mo, oldState, null);
+    }
+
+    /**
+     * Like {@link Remote#updateObjectState(MutableObject, ObjectState)}, but only reads the given fields from the
+     * object and takes the values of all others from the old state
+     * @param writtenFields ordinals of the fields written since the old state was created, null to read all fields
+     */
+    public ObjectState updateObjectState(MutableObject mo, ObjectState oldState, BitSet writtenFields) {
+        ClassMetadata info = ClassMetadata.getMetadata(mo);
+        ObjectState objectState = new ObjectState(info, mo.constructorParameterObjects(), oldState.objectId, oldState);
         //put overrides existing values but not existing keys which we also want -> remove old entry first
         remove(oldState);
         put(objectState, mo);
-        assignFieldsToObjectState(objectState, mo);
+        resolveUpdate(mo, objectState, oldState, writtenFields);
+        resolveStates();
+        return objectState;
+    }
+
+    /**
+     * Create a state of an object under the given id without putting it into the remote. Construction params and
+     * fields are left unresolved
+     */
+    ObjectState detachedState(MutableObject mo, ObjectId objectId) {
+        return new ObjectState(ClassMetadata.getMetadata(mo), mo.constructorParameterObjects(), objectId, null);
+    }
+
+    /**
+     * Get the state of an object or put a new, not yet resolved state for it into the remote
+     */
+    private ObjectState stateOf(MutableObject mo) {
+        ObjectState objectState = getKey(mo);
+        if (objectState == null) {
+            objectState = new ObjectState(ClassMetadata.getMetadata(mo), mo.constructorParameterObjects(), new ObjectId(), null);
+            put(objectState, mo);
+            unresolved.add(mo);
+        }
         return objectState;
     }
 
-    private void assignFieldsToObjectState(ObjectState objectState, MutableObject mo) {
-        for (Field field : ClassMetadata.getFields(mo)) {
-            Object fieldValue = null;
-            try {
-                field.setAccessible(true);
-                fieldValue = field.get(mo);
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
+    private static int chunks(int slots) {
+        return (slots + CHUNK_MASK) >>> CHUNK_BITS;
+    }
+
+    private static int chunkLength(int slots, int chunk) {
+        return Math.min(CHUNK_SIZE, slots - (chunk << CHUNK_BITS));
+    }
+
+    /**
+     * Replace the objects in construction params of unresolved states with their states and assign the fields.
+     * States of referenced objects are created along the way
+     */
+    private void resolveStates() {
+        while (!unresolved.isEmpty()) {
+            MutableObject mo = unresolved.remove(unresolved.size()-1);
+            ObjectState objectState = getKey(mo);
+            capture(mo, objectState);
+            link(objectState, this::stateOf);
+        }
+    }
+
+    /**
+     * Assign the fields of a new state from its object. Referenced {@link MutableObject}s are kept until
+     * {@link Remote#link(ObjectState, Function)} replaces them with their states
+     */
+    private static void capture(MutableObject mo, ObjectState objectState) {
+        for (FieldAccessor accessor : ClassMetadata.getMetadata(objectState.clazz).fieldAccessors) {
+            if (accessor.primitive) {
+                objectState.setPrimitive(accessor, accessor.getBits(mo), null);
+                continue;
+            }
+            Object fieldValue = accessor.get(mo);
+            objectState.setReference(accessor.slot, fieldValue instanceof MutableObject ? fieldValue : ValueInterner.intern(fieldValue), null);
+        }
+    }
+
+    /**
+     * Replace the {@link MutableObject}s in construction params and fields of a captured state with their states
+     * @param lookup provides the state of an object, or null if it has none yet
+     * @return false if some objects were left in place because they had no state
+     */
+    private static boolean link(ObjectState objectState, Function<MutableObject, ObjectState> lookup) {
+        boolean complete = true;
+        Object[] constructionParams = objectState.constructionParams;
+        for (int i=0; i<constructionParams.length; i++) {
+            if (constructionParams[i] instanceof MutableObject) {
+                ObjectState state = lookup.apply((MutableObject) constructionParams[i]);
+                if (state == null)
+                    complete = false;
+                else constructionParams[i] = state;
+            }
+        }
+        for (Object[] chunk : objectState.references) {
+            for (int i=0; i<chunk.length; i++) {
+                if (chunk[i] instanceof MutableObject) {
+                    ObjectState state = lookup.apply((MutableObject) chunk[i]);
+                    if (state == null)
+                        complete = false;
+                    else chunk[i] = state;
+                }
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Assign construction params and fields of a state that replaces the previous state of the same object, sharing
+     * the previous values where they didn't change
+     */
+    private void resolveUpdate(MutableObject mo, ObjectState objectState, ObjectState previous, BitSet writtenFields) {
+        Object[] constructionParams = objectState.constructionParams;
+        for (int i=0; i<constructionParams.length; i++) {
+            if (constructionParams[i] instanceof MutableObject)
+                constructionParams[i] = stateOf((MutableObject) constructionParams[i]);
+        }
+        if (Arrays.equals(constructionParams, previous.constructionParams))
+            objectState.constructionParams = previous.constructionParams;
+        for (FieldAccessor accessor : ClassMetadata.getMetadata(objectState.clazz).fieldAccessors) {
+            boolean written = writtenFields == null || writtenFields.get(accessor.ordinal);
+            //unwritten values are already shared with the previous state
+            if (!written)
+                continue;
+            if (accessor.primitive) {
+                objectState.setPrimitive(accessor, accessor.getBits(mo), previous);
+                continue;
             }
-            if (fieldValue instanceof MutableObject) {
-                objectState.fields.put(field, createObjectState((MutableObject) fieldValue));
+            Object fieldValue = accessor.get(mo);
+            if (fieldValue instanceof MutableObject)
+                fieldValue = stateOf((MutableObject) fieldValue);
+            else fieldValue = ValueInterner.intern(fieldValue);
+            objectState.setReference(accessor.slot, fieldValue, previous);
+        }
+    }
+
+    /**
+     * @return the object the given state belongs to, or null if the state is not part of this remote
+     */
+    public MutableObject get(ObjectState state) {
+        int slot = find(state.objectId.id);
+        return slot < 0 ? null : objects[slot];
+    }
+
+    /**
+     * @return the state of the given object, or null if the object is not part of this remote
+     */
+    public ObjectState getKey(MutableObject mo) {
+        return statesByObject.get(mo);
+    }
+
+    public boolean containsKey(ObjectState state) {
+        return find(state.objectId.id) >= 0;
+    }
+
+    public boolean containsValue(MutableObject mo) {
+        return statesByObject.containsKey(mo);
+    }
+
+    /**
+     * Start maintaining a persistent version of this remote alongside the index. Afterwards, every change costs a few
+     * additional allocations, but {@link Remote#snapshot()} is free
+     */
+    public void enableSnapshots() {
+        if (snapshot != null)
+            return;
+        RemoteSnapshot version = RemoteSnapshot.EMPTY;
+        for (ObjectState state : states) {
+            if (state != null)
+                version = version.with(state);
+        }
+        snapshot = version;
+    }
+
+    public boolean snapshotsEnabled() {
+        return snapshot != null;
+    }
+
+    /**
+     * @return the current content of this remote as immutable version that is not affected by later changes
+     */
+    public RemoteSnapshot snapshot() {
+        if (snapshot == null)
+            throw new IllegalStateException("snapshots are not enabled for this remote");
+        return snapshot;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Link a state with an object. Existing links of the state's {@link ObjectId} or of the object are replaced
+     */
+    public void put(ObjectState state, MutableObject mo) {
+        ObjectState previousState = statesByObject.put(mo, state);
+        if (previousState != null && previousState.objectId.id != state.objectId.id)
+            removeSlot(find(previousState.objectId.id));
+        long id = state.objectId.id;
+        int slot = indexOf(id);
+        while (states[slot] != null) {
+            if (ids[slot] == id) {
+                if (objects[slot] != mo)
+                    statesByObject.remove(objects[slot]);
+                count(states[slot], -1);
+                count(state, 1);
+                states[slot] = state;
+                objects[slot] = mo;
+                if (snapshot != null)
+                    snapshot = snapshot.with(state);
+                return;
             }
-            else objectState.fields.put(field, fieldValue);
+            slot = (slot + 1) & (states.length - 1);
+        }
+        ids[slot] = id;
+        states[slot] = state;
+        objects[slot] = mo;
+        count(state, 1);
+        if (snapshot != null)
+            snapshot = snapshot.with(state);
+        if (++size * 2 > states.length)
+            resize(states.length * 2);
+    }
+
+    /**
+     * Remove the link of the given state
+     * @return the object that was linked with the state, or null
+     */
+    public MutableObject remove(ObjectState state) {
+        int slot = find(state.objectId.id);
+        if (slot < 0)
+            return null;
+        MutableObject mo = objects[slot];
+        statesByObject.remove(mo);
+        removeSlot(slot);
+        return mo;
+    }
+
+    /**
+     * Remove the link of the given object
+     * @return the state that was linked with the object, or null
+     */
+    public ObjectState removeValue(MutableObject mo) {
+        ObjectState state = statesByObject.remove(mo);
+        if (state != null)
+            removeSlot(find(state.objectId.id));
+        return state;
+    }
+
+    /**
+     * Estimate the memory retained by this remote from the sizes counted while states were put and removed
+     * @param stateBytesByClass receives the estimated size of the held states per described class
+     * @return estimated size of the index linking objects and states
+     */
+    long estimateMemory(Map<Class<?>, Long> stateBytesByClass) {
+        for (Map.Entry<Class<?>, AtomicLong> entry : stateBytes.entrySet()) {
+            long bytes = entry.getValue().get();
+            if (bytes > 0)
+                stateBytesByClass.put(entry.getKey(), bytes);
         }
+        //parallel table arrays plus the identity map, which keeps keys and values in one array at a load of at most 2/3
+        return MemoryReport.arrayBytes(8, ids.length) + 2*MemoryReport.arrayBytes(MemoryReport.REFERENCE, states.length)
+                + MemoryReport.arrayBytes(MemoryReport.REFERENCE, 3*statesByObject.size());
     }
 
     public ObjectState getLogicalObjectKeyOfOwner(Child<?> ch) {
@@ -86,13 +453,104 @@ public class Remote extends DualHashBidiMap<Remote.ObjectState, MutableObject> {
         return this.getKey(ch.getOwner());
     }
 
+
+
+    //==========PRIVATE METHODS====================================================
+
+    private int indexOf(long id) {
+        return homeSlot(id, states.length);
+    }
+
+    /**
+     * @return the slot the given id is probed from in a table of the given capacity
+     */
+    static int homeSlot(long id, int capacity) {
+        //fibonacci hashing spreads consecutive ids over the table
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(capacity)));
+    }
+
+    int capacity() {
+        return states.length;
+    }
+
+    /**
+     * @return slot of the given id or -1 if it isn't present
+     */
+    int find(long id) {
+        int slot = indexOf(id);
+        while (states[slot] != null) {
+            if (ids[slot] == id)
+                return slot;
+            slot = (slot + 1) & (states.length - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Clear a slot and shift following entries of the probe sequence back, so no tombstones are needed
+     */
+    private void removeSlot(int slot) {
+        if (snapshot != null)
+            snapshot = snapshot.without(ids[slot]);
+        count(states[slot], -1);
+        int mask = states.length - 1;
+        int next = (slot + 1) & mask;
+        while (states[next] != null) {
+            int home = indexOf(ids[next]);
+            //move the entry if its home slot isn't cyclically within (slot, next]
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                ids[slot] = ids[next];
+                states[slot] = states[next];
+                objects[slot] = objects[next];
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        states[slot] = null;
+        objects[slot] = null;
+        size--;
+    }
+
+    /**
+     * Add the estimated size of a state to the bytes of its class, or subtract it
+     */
+    private void count(ObjectState state, int sign) {
+        AtomicLong bytes = stateBytes.get(state.clazz);
+        if (bytes == null) {
+            AtomicLong created = new AtomicLong();
+            bytes = stateBytes.putIfAbsent(state.clazz, created);
+            if (bytes == null)
+                bytes = created;
+        }
+        bytes.addAndGet(sign * state.estimatedSize());
+    }
+
+    private void resize(int capacity) {
+        long[] oldIds = ids;
+        ObjectState[] oldStates = states;
+        MutableObject[] oldObjects = objects;
+        ids = new long[capacity];
+        states = new ObjectState[capacity];
+        objects = new MutableObject[capacity];
+        for (int i=0; i<oldStates.length; i++) {
+            if (oldStates[i] == null)
+                continue;
+            int slot = indexOf(oldIds[i]);
+            while (states[slot] != null)
+                slot = (slot + 1) & (capacity - 1);
+            ids[slot] = oldIds[i];
+            states[slot] = oldStates[i];
+            objects[slot] = oldObjects[i];
+        }
+    }
+
     /**
      * Class that acts as a key for a given object's state at a given {@link CommitId}. Primarily saves the immutable
      * {@link ClassMetadata#fields} of an object (that excludes the owner, keys
      * and children). This state is linked up with the corresponding object within the {@link Remote}.
      * This object must be immutable after its full construction within a commit.
      */
-    public class ObjectState {
+    public static class ObjectState {
 
         /**
          * Corresponding class-type whose content is saved by this state
@@ -103,33 +561,59 @@ public class Remote extends DualHashBidiMap<Remote.ObjectState, MutableObject> {
          * Save constructor parameters as they might also be subject to change (migration). If the param holds another
          * {@link MutableObject}, then the corresponding {@link ObjectState} is used
          */
-        private final Object[] constructionParams;
+        private Object[] constructionParams;
+
+        /**
+         * Values of the non-primitive fields, indexed by the slot assigned by {@link ClassMetadata} and split into chunks of
+         * {@link Remote#CHUNK_SIZE}. If the field holds another {@link MutableObject}, then the corresponding
+         * {@link ObjectState} is used. Chunks are never modified once the state is resolved, so successive states of an
+         * object share the chunks whose values didn't change
+         */
+        final Object[][] references;
 
         /**
-         * Map fields to their corresponding values. If the field holds another {@link MutableObject}, then the corresponding
-         * {@link ObjectState} is used
+         * Values of the primitive fields, encoded as long by their {@link FieldAccessor}, indexed by the slot assigned by
+         * {@link ClassMetadata} and chunked like {@link ObjectState#references}. Keeps commit and pull from boxing every
+         * number and flag of the data model
          */
-        private final HashMap<Field, Object> fields = new HashMap<>();
+        private final long[][] primitives;
 
         /**
          * Can't use the values of the fields as hash because they can be the same for several objects of the data model.
          * Use a {@link Remote}-wide unique id instead
          */
-        private final ObjectId objectId;
+        final ObjectId objectId;
 
         /**
          * Constructor is private so that states are only instantiated via the {@link Remote} that
          * they are held in
          */
-        private ObjectState(Class<? extends MutableObject> clazz, Object[] constructionParams, ObjectId objectId) {
-            this.clazz = clazz;
+        private ObjectState(ClassMetadata info, Object[] constructionParams, ObjectId objectId, ObjectState previous) {
+            this.clazz = info.clazz;
+            //start out with the chunks of the previous state, which are copied before their first change
+            if (info.referenceSlots == 0)
+                this.references = NO_REFERENCES;
+            else if (previous != null)
+                this.references = previous.references.clone();
+            else {
+                this.references = new Object[chunks(info.referenceSlots)][];
+                for (int c=0; c<references.length; c++)
+                    references[c] = new Object[chunkLength(info.referenceSlots, c)];
+            }
+            if (info.primitiveSlots == 0)
+                this.primitives = NO_PRIMITIVES;
+            else if (previous != null)
+                this.primitives = previous.primitives.clone();
+            else {
+                this.primitives = new long[chunks(info.primitiveSlots)][];
+                for (int c=0; c<primitives.length; c++)
+                    primitives[c] = new long[chunkLength(info.primitiveSlots, c)];
+            }
+            //MutableObjects are replaced by their states once the remote resolves this state
             this.constructionParams = new Object[constructionParams.length];
             for (int i=0; i<constructionParams.length; i++) {
                 Object obj = constructionParams[i];
-                if (obj instanceof MutableObject) {
-                    this.constructionParams[i] = createObjectState((MutableObject) obj);
-                }
-                else this.constructionParams[i] = obj;
+                this.constructionParams[i] = obj instanceof MutableObject ? obj : ValueInterner.intern(obj);
             }
             this.objectId = objectId;
         }
@@ -138,22 +622,153 @@ public class Remote extends DualHashBidiMap<Remote.ObjectState, MutableObject> {
             return constructionParams;
         }
 
+        public ObjectId getObjectId() {
+            return objectId;
+        }
+
+        /**
+         * @return a read-only view mapping the fields to their values
+         */
         public Map<Field, Object> getFields() {
-            return MapUtils.unmodifiableMap(fields);
+            return new FieldView();
         }
 
         boolean contentEquals(ObjectState other) {
-            for(Field f:fields.keySet()) {
-                if(!other.fields.containsKey(f)) {
-                    return false;
+            if (clazz != other.clazz)
+                return false;
+            for (FieldAccessor accessor : ClassMetadata.getMetadata(clazz).fieldAccessors) {
+                if (accessor.primitive) {
+                    if (getPrimitive(accessor) != other.getPrimitive(accessor))
+                        return false;
                 }
-                if(!Objects.equals(fields.get(f), other.fields.get(f))) {
+                else if (!Objects.equals(getReference(accessor.slot), other.getReference(accessor.slot)))
                     return false;
-                }
             }
             return true;
         }
 
+        /**
+         * @return shallow size of this state and its arrays in bytes. Chunks shared with
+         * other states of the same object are counted for each of them. The size only depends on the described class,
+         * so all states of an object have the same size
+         */
+        public long estimatedSize() {
+            long size = MemoryReport.STATE + MemoryReport.arrayBytes(MemoryReport.REFERENCE, constructionParams.length);
+            if (references != NO_REFERENCES) {
+                size += MemoryReport.arrayBytes(MemoryReport.REFERENCE, references.length);
+                for (Object[] chunk : references)
+                    size += MemoryReport.arrayBytes(MemoryReport.REFERENCE, chunk.length);
+            }
+            if (primitives != NO_PRIMITIVES) {
+                size += MemoryReport.arrayBytes(MemoryReport.REFERENCE, primitives.length);
+                for (long[] chunk : primitives)
+                    size += MemoryReport.arrayBytes(8, chunk.length);
+            }
+            return size;
+        }
+
+        /**
+         * @return the value of the non-primitive field with the given slot
+         */
+        Object getReference(int slot) {
+            return references[slot >>> CHUNK_BITS][slot & CHUNK_MASK];
+        }
+
+        /**
+         * Assign a non-primitive field while resolving. A chunk still shared with the previous state is copied before
+         * its first change
+         */
+        private void setReference(int slot, Object value, ObjectState previous) {
+            int c = slot >>> CHUNK_BITS;
+            Object[] chunk = references[c];
+            if (previous != null && chunk == previous.references[c]) {
+                if (sameReference(chunk[slot & CHUNK_MASK], value))
+                    return;
+                chunk = chunk.clone();
+                references[c] = chunk;
+            }
+            chunk[slot & CHUNK_MASK] = value;
+        }
+
+        /**
+         * States of the same object are interchangeable as references, as they are resolved by their id
+         */
+        private boolean sameReference(Object a, Object b) {
+            return a == b || a instanceof ObjectState && a.equals(b);
+        }
+
+        /**
+         * @return true if the other state holds the same value for the field described by the given accessor. Values in
+         * chunks shared by both states aren't compared
+         */
+        boolean sameValue(ObjectState other, FieldAccessor accessor) {
+            int c = accessor.slot >>> CHUNK_BITS;
+            if (accessor.primitive)
+                return primitives[c] == other.primitives[c] || getPrimitive(accessor) == other.getPrimitive(accessor);
+            return references[c] == other.references[c] || sameReference(getReference(accessor.slot), other.getReference(accessor.slot));
+        }
+
+        /**
+         * @return the long encoding of the primitive field described by the given accessor
+         */
+        long getPrimitive(FieldAccessor accessor) {
+            return primitives[accessor.slot >>> CHUNK_BITS][accessor.slot & CHUNK_MASK];
+        }
+
+        /**
+         * Assign a primitive field while resolving, copying a chunk shared with the previous state before its first change
+         */
+        private void setPrimitive(FieldAccessor accessor, long bits, ObjectState previous) {
+            int c = accessor.slot >>> CHUNK_BITS;
+            long[] chunk = primitives[c];
+            if (previous != null && chunk == previous.primitives[c]) {
+                if (chunk[accessor.slot & CHUNK_MASK] == bits)
+                    return;
+                chunk = chunk.clone();
+                primitives[c] = chunk;
+            }
+            chunk[accessor.slot & CHUNK_MASK] = bits;
+        }
+
+        /**
+         * Value of the field described by the given accessor. Primitives are boxed on demand
+         */
+        Object valueOf(FieldAccessor accessor) {
+            return accessor.primitive ? accessor.box(getPrimitive(accessor)) : getReference(accessor.slot);
+        }
+
+        /**
+         * Map view on the field values of this state, keyed by the fields of the described class
+         */
+        private class FieldView extends AbstractMap<Field, Object> {
+            private final ClassMetadata info = ClassMetadata.getMetadata(clazz);
+            private final FieldAccessor[] accessors = info.fieldAccessors;
+
+            @Override
+            public Object get(Object key) {
+                FieldAccessor accessor = key instanceof Field ? info.accessorOf((Field) key) : null;
+                return accessor == null ? null : valueOf(accessor);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return key instanceof Field && info.accessorOf((Field) key) != null;
+            }
+
+            @Override
+            public int size() {
+                return accessors.length;
+            }
+
+            @Override
+            public Set<Entry<Field, Object>> entrySet() {
+                Set<Entry<Field, Object>> entries = new LinkedHashSet<>();
+                for (FieldAccessor accessor : accessors)
+                    entries.add(new SimpleImmutableEntry<>(accessor.field, valueOf(accessor)));
+                return Collections.unmodifiableSet(entries);
+            }
+        }
+
         @Override
         public boolean equals(Object o) {
             if (!(o instanceof ObjectState)) {
@@ -172,15 +787,14 @@ public class Remote extends DualHashBidiMap<Remote.ObjectState, MutableObject> {
         public String toString() {
             StringBuilder strb = new StringBuilder();
             strb.append(clazz.getSimpleName()).append("[").append(objectId).append("] = {");
-            if (!fields.isEmpty()) {
-                for (Entry<Field, Object> entry : fields.entrySet()) {
-                    if (entry.getValue() == null)
-                        strb.append(entry.getKey().getName()).append("=[null] ");
-                    else if (entry.getValue() instanceof ObjectState)
-                        strb.append(entry.getKey().getName()).append("=[").append(entry.getValue().hashCode()).append("] ");
-                    else
-                        strb.append(entry.getKey().getName()).append("=").append(entry.getValue()).append(" ");
-                }
+            for (FieldAccessor accessor : ClassMetadata.getMetadata(clazz).fieldAccessors) {
+                Object value = valueOf(accessor);
+                if (value == null)
+                    strb.append(accessor.getName()).append("=[null] ");
+                else if (value instanceof ObjectState)
+                    strb.append(accessor.getName()).append("=[").append(value.hashCode()).append("] ");
+                else
+                    strb.append(accessor.getName()).append("=").append(value).append(" ");
             }
             //remove last space if attributes exist
             if (strb.charAt(strb.length()-1) == ' ')
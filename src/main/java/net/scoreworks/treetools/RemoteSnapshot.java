@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2023 Daniel Maier.
+ * Licensed under the MIT License.
+ */
+
+package net.scoreworks.treetools;
+
+import java.util.function.Consumer;
+
+
+/**
+ * Immutable version of the states held by a {@link Remote} at one point in time, mapping each {@link ObjectId} to its
+ * {@link Remote.ObjectState}. Versions are persistent hash tries: a new version copies only the path to a changed entry
+ * and shares everything else with its predecessor. Retaining the remote as of a commit therefore costs memory in the
+ * order of the changes since the previous version instead of the size of the data model.
+ */
+public final class RemoteSnapshot {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    static final RemoteSnapshot EMPTY = new RemoteSnapshot(null, 0);
+
+    /**
+     * Root of the trie, null if empty
+     */
+    private final Node root;
+    private final int size;
+
+    private RemoteSnapshot(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @return the state of the object with the given id in this version, or null if it didn't exist
+     */
+    public Remote.ObjectState get(ObjectId objectId) {
+        long id = objectId.id;
+        long hash = hash(id);
+        Node node = root;
+        for (int shift = 0; node != null; shift += BITS) {
+            int bit = 1 << ((int) (hash >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0)
+                return null;
+            Object entry = node.entries[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (entry instanceof Remote.ObjectState) {
+                Remote.ObjectState state = (Remote.ObjectState) entry;
+                return state.objectId.id == id ? state : null;
+            }
+            node = (Node) entry;
+        }
+        return null;
+    }
+
+    public boolean contains(ObjectId objectId) {
+        return get(objectId) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Visit all states of this version in no particular order
+     */
+    public void forEach(Consumer<? super Remote.ObjectState> action) {
+        if (root != null)
+            forEach(root, action);
+    }
+
+    /**
+     * @return a version that additionally contains the given state, replacing the state with the same {@link ObjectId}
+     */
+    RemoteSnapshot with(Remote.ObjectState state) {
+        long id = state.objectId.id;
+        boolean[] added = new boolean[1];
+        Node newRoot = root == null ? new Node(bitOf(hash(id), 0), new Object[]{state}) : with(root, hash(id), id, state, 0, added);
+        return new RemoteSnapshot(newRoot, root == null || added[0] ? size + 1 : size);
+    }
+
+    /**
+     * @return a version without the state of the given id
+     */
+    RemoteSnapshot without(long id) {
+        if (root == null)
+            return this;
+        Object newRoot = without(root, hash(id), id, 0);
+        if (newRoot == root)
+            return this;
+        return new RemoteSnapshot((Node) newRoot, size - 1);
+    }
+
+
+    //==========PRIVATE METHODS====================================================
+
+    /**
+     * Bijective mix of the id, so distinct ids always end up in distinct leaves and no collision handling is needed
+     */
+    private static long hash(long id) {
+        return id * 0x9E3779B97F4A7C15L;
+    }
+
+    private static int bitOf(long hash, int shift) {
+        return 1 << ((int) (hash >>> shift) & MASK);
+    }
+
+    private static Node with(Node node, long hash, long id, Remote.ObjectState state, int shift, boolean[] added) {
+        int bit = bitOf(hash, shift);
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            added[0] = true;
+            Object[] entries = new Object[node.entries.length + 1];
+            System.arraycopy(node.entries, 0, entries, 0, index);
+            entries[index] = state;
+            System.arraycopy(node.entries, index, entries, index + 1, node.entries.length - index);
+            return new Node(node.bitmap | bit, entries);
+        }
+        Object entry = node.entries[index];
+        Object replacement;
+        if (entry instanceof Node)
+            replacement = with((Node) entry, hash, id, state, shift + BITS, added);
+        else if (((Remote.ObjectState) entry).objectId.id == id)
+            replacement = state;
+        else {
+            added[0] = true;
+            replacement = merge((Remote.ObjectState) entry, state, hash, shift + BITS);
+        }
+        Object[] entries = node.entries.clone();
+        entries[index] = replacement;
+        return new Node(node.bitmap, entries);
+    }
+
+    /**
+     * Build the subtree holding two states whose hashes are equal up to the given shift
+     */
+    private static Node merge(Remote.ObjectState existing, Remote.ObjectState added, long addedHash, int shift) {
+        long existingHash = hash(existing.objectId.id);
+        int existingBit = bitOf(existingHash, shift);
+        int addedBit = bitOf(addedHash, shift);
+        if (existingBit == addedBit)
+            return new Node(existingBit, new Object[]{merge(existing, added, addedHash, shift + BITS)});
+        Object[] entries = Integer.compareUnsigned(existingBit, addedBit) < 0 ? new Object[]{existing, added} : new Object[]{added, existing};
+        return new Node(existingBit | addedBit, entries);
+    }
+
+    /**
+     * @return the node without the id, a single remaining state if the node collapsed, null if it became empty,
+     * or the node itself if the id wasn't present
+     */
+    private static Object without(Node node, long hash, long id, int shift) {
+        int bit = bitOf(hash, shift);
+        if ((node.bitmap & bit) == 0)
+            return node;
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        Object entry = node.entries[index];
+        Object replacement;
+        if (entry instanceof Node) {
+            replacement = without((Node) entry, hash, id, shift + BITS);
+            if (replacement == entry)
+                return node;
+        }
+        else if (((Remote.ObjectState) entry).objectId.id == id)
+            replacement = null;
+        else return node;
+
+        if (replacement != null) {
+            //single states move up to keep paths short, but the root must stay a node
+            if (replacement instanceof Remote.ObjectState && node.entries.length == 1 && shift > 0)
+                return replacement;
+            Object[] entries = node.entries.clone();
+            entries[index] = replacement;
+            return new Node(node.bitmap, entries);
+        }
+        if (node.entries.length == 1)
+            return null;
+        if (node.entries.length == 2 && shift > 0 && node.entries[1 - index] instanceof Remote.ObjectState)
+            return node.entries[1 - index];
+        Object[] entries = new Object[node.entries.length - 1];
+        System.arraycopy(node.entries, 0, entries, 0, index);
+        System.arraycopy(node.entries, index + 1, entries, index, entries.length - index);
+        return new Node(node.bitmap & ~bit, entries);
+    }
+
+    private static void forEach(Node node, Consumer<? super Remote.ObjectState> action) {
+        for (Object entry : node.entries) {
+            if (entry instanceof Node)
+                forEach((Node) entry, action);
+            else action.accept((Remote.ObjectState) entry);
+        }
+    }
+
+    /**
+     * Bitmap-indexed trie node. Entries are either {@link Remote.ObjectState}s (leaves) or child nodes, ordered by
+     * their bit in the bitmap
+     */
+    private static final class Node {
+        final int bitmap;
+        final Object[] entries;
+
+        Node(int bitmap, Object[] entries) {
+            this.bitmap = bitmap;
+            this.entries = entries;
+        }
+    }
+}
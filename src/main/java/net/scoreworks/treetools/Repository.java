@@ -5,8 +5,16 @@
 
 package net.scoreworks.treetools;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 
 /**
  * A class that links {@link RootEntity} with a {@link Remote} and provides the necessary
@@ -23,31 +31,110 @@ public class Repository {
      * can revert to while uncommitted changes exist.*/
     Remote remote;
 
+    /**
+     * True while the remote only holds the states that were needed so far. Every other object of the data model that
+     * is not locally created is implicitly part of the remote, with its current content as state. This holds because
+     * states are created before an object's first local change or its deletion
+     */
+    private boolean partialRemote;
+
     /** Keep track of at which commit the {@link Repository} is currently at */
     CommitId currentCommitId;
 
+    /**
+     * Versions of the remote by the commit they were reached at. Null unless enabled with
+     * {@link TransactionManager#enableRemoteSnapshots(RootEntity)}
+     */
+    NavigableMap<CommitId, RemoteSnapshot> snapshots;
+
     /**
      * Used to suppress the creation of deltas during pull
      */
     boolean ongoingPull;
 
-    private final Set<Child<?>> locallyCreated = new HashSet<>();
+    //pending deltas are kept in insertion order. Commits drain them by repeatedly taking and removing the first
+    //element, which is constant time for linked structures but scans empty buckets of a plain hash table
+    private final Set<Child<?>> locallyCreated = new LinkedHashSet<>();
 
-    private final Set<Child<?>> locallyDeleted = new HashSet<>();
+    private final Set<Child<?>> locallyDeleted = new LinkedHashSet<>();
 
-    private final Set<MutableObject> locallyChanged = new HashSet<>();
+    /**
+     * Changed objects with the ordinals of their written fields. Null if it is unknown which fields were written
+     */
+    private final Map<MutableObject, BitSet> locallyChanged = new LinkedHashMap<>();
 
 
     Repository(RootEntity rootEntity, CommitId currentCommitId) {
+        this(rootEntity, currentCommitId, false);
+    }
+
+    /**
+     * @param lazyRemote create states of the data model on demand instead of building the whole remote up front
+     */
+    Repository(RootEntity rootEntity, CommitId currentCommitId, boolean lazyRemote) {
         this.rootEntity = rootEntity;
-        this.remote = new Remote(rootEntity);
+        this.remote = new Remote(rootEntity, lazyRemote);
         this.currentCommitId = currentCommitId;
+        this.partialRemote = lazyRemote;
+    }
+
+    /**
+     * Get the remote state of an object. If the remote is built lazily, a missing state is created now
+     * @return the state or null if the object is not part of the remote
+     */
+    Remote.ObjectState getState(MutableObject mo) {
+        Remote.ObjectState state = remote.getKey(mo);
+        if (state == null && partialRemote && !(mo instanceof Child && locallyCreated.contains(mo)))
+            state = remote.createObjectState(mo);
+        return state;
+    }
+
+    /**
+     * Create all states a lazily built remote is still missing. Needed before the remote is used as a whole
+     */
+    void completeRemote() {
+        if (!partialRemote)
+            return;
+        ArrayList<MutableObject> worklist = new ArrayList<>();
+        Consumer<Child<?>> collect = ch -> {
+            //children of locally created objects are locally created as well
+            if (!locallyCreated.contains(ch))
+                worklist.add(ch);
+        };
+        worklist.add(rootEntity);
+        while (!worklist.isEmpty()) {
+            MutableObject mo = worklist.remove(worklist.size()-1);
+            remote.createObjectState(mo);
+            ClassMetadata.forEachChild(mo, collect);
+        }
+        partialRemote = false;
     }
 
     public Remote getRemote() {
         return remote;
     }
 
+    boolean hasPartialRemote() {
+        return partialRemote;
+    }
+
+    void enableSnapshots() {
+        if (snapshots != null)
+            return;
+        completeRemote();
+        remote.enableSnapshots();
+        snapshots = new TreeMap<>();
+        recordSnapshot();
+    }
+
+    /**
+     * Remember the current version of the remote for {@link Repository#currentCommitId}, if snapshots are enabled
+     */
+    void recordSnapshot() {
+        if (snapshots != null)
+            snapshots.put(currentCommitId, remote.snapshot());
+    }
+
     public boolean hasNoLocalChanges() {
         return locallyCreated.isEmpty() && locallyChanged.isEmpty() && locallyDeleted.isEmpty();
     }
@@ -66,26 +153,107 @@ public class Repository {
         if (locallyCreated.contains(ch)) {
             locallyCreated.remove(ch);
         }
-        else if (locallyChanged.contains(ch)) {
+        else if (locallyChanged.containsKey(ch)) {
             locallyChanged.remove(ch);
             locallyDeleted.add(ch);
         }
         else {
+            //the deletion record needs the state before this commit
+            if (partialRemote)
+                getState(ch);
             locallyDeleted.add(ch);
         }
     }
 
-    //used by aspect
+    /**
+     * Log a change of an object without knowing which fields were written. The whole object is read on commit
+     */
     public void logLocalChange(MutableObject mo) {
         //pulls are not allowed to create deltas!
         if (ongoingPull)
             return;
+        logLocalChange(mo, -1);
+    }
+
+    /**
+     * Log the write of a field. Used by {@link ChangeTracking} before the field is set
+     * @return false if the write was skipped because it doesn't change the field, see
+     * {@link TransactionManager#enableNoOpWriteSkipping()}
+     */
+    public boolean logLocalChange(MutableObject mo, Class<?> declaringClass, String fieldName, Object newValue) {
+        //pulls are not allowed to create deltas!
+        if (ongoingPull)
+            return true;
+        if (rootEntity.inBulk()) {
+            //only flag the object, it is logged when the scope ends. The state before the change must be there by then
+            if (rootEntity.touch(mo, RootEntity.WRITTEN) && partialRemote && !(mo instanceof Child && locallyCreated.contains(mo)))
+                getState(mo);
+            return false;
+        }
+        ClassMetadata info = ClassMetadata.getMetadata(mo);
+        int ordinal = info.ordinalOf(declaringClass, fieldName);
+        if (ordinal < 0 || !TransactionManager.getInstance().skipNoOpWrites) {
+            logLocalChange(mo, ordinal);
+            return true;
+        }
+        FieldAccessor accessor = info.fieldAccessors[ordinal];
+        Object value = accessor.get(mo);
+        if (value == newValue || value != null && !(value instanceof MutableObject) && value.equals(newValue))
+            return false;
+        logLocalChange(mo, ordinal);
+        //a write that restores the remote state takes the object out of the change set again
+        if (restoresState(mo, accessor, newValue))
+            locallyChanged.remove(mo);
+        return true;
+    }
+
+    /**
+     * @return true if all fields written since the last commit hold their remote values again, once the given
+     * field is set to the new value
+     */
+    private boolean restoresState(MutableObject mo, FieldAccessor writtenField, Object newValue) {
+        BitSet written = locallyChanged.get(mo);
+        Remote.ObjectState state = remote.getKey(mo);
+        if (written == null || state == null)
+            return false;
+        FieldAccessor[] accessors = ClassMetadata.getMetadata(mo).fieldAccessors;
+        for (int i = written.nextSetBit(0); i >= 0; i = written.nextSetBit(i+1)) {
+            Object value = accessors[i] == writtenField ? newValue : accessors[i].get(mo);
+            Object remoteValue = state.valueOf(accessors[i]);
+            if (value instanceof MutableObject) {
+                if (!(remoteValue instanceof Remote.ObjectState) || remote.get((Remote.ObjectState) remoteValue) != value)
+                    return false;
+            }
+            else if (!Objects.equals(value, remoteValue))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param ordinal ordinal of the written field or -1 if unknown
+     */
+    private void logLocalChange(MutableObject mo, int ordinal) {
         if (mo instanceof Child) {
-            if (!locallyCreated.contains(mo) && !locallyDeleted.contains(mo)) {
-                locallyChanged.add(mo);
+            if (locallyCreated.contains(mo) || locallyDeleted.contains(mo))
+                return;
+            //capture the state before the change is applied (called before the field is set)
+            if (partialRemote)
+                getState(mo);
+        }
+        BitSet written = locallyChanged.get(mo);
+        if (written == null) {
+            if (locallyChanged.containsKey(mo))
+                return;
+            if (ordinal >= 0) {
+                written = new BitSet();
+                written.set(ordinal);
             }
+            locallyChanged.put(mo, written);
         }
-        else locallyChanged.add(mo);
+        else if (ordinal >= 0)
+            written.set(ordinal);
+        else locallyChanged.put(mo, null);
     }
 
     public boolean locallyCreatedContains(Child<?> ch) {
@@ -97,7 +265,14 @@ public class Repository {
     }
 
     public boolean locallyChangedContains(MutableObject mo) {
-        return locallyChanged.contains(mo);
+        return locallyChanged.containsKey(mo);
+    }
+
+    /**
+     * @return ordinals of the fields of a changed object written since the last commit, or null if unknown
+     */
+    public BitSet getWrittenFields(MutableObject mo) {
+        return locallyChanged.get(mo);
     }
 
 
@@ -116,7 +291,7 @@ public class Repository {
     public MutableObject getOneChange() {
         if (locallyChanged.isEmpty())
             return null;
-        return locallyChanged.iterator().next();
+        return locallyChanged.keySet().iterator().next();
     }
 
     public void removeCreation(Child<?> ch) {
@@ -19,6 +19,25 @@ import java.util.*;
 public abstract class RootEntity implements MutableObject {
     final transient TransactionManager tm = TransactionManager.getInstance();
 
+    /**
+     * The repository of this data model, null if transactions are not enabled for it. Kept here so that tracking a
+     * change only costs a field load instead of a lookup in {@link TransactionManager#repositories}. As member of this
+     * class, this field is not part of the data model itself and is ignored by the transactional system and {@link JsonParser}
+     */
+    transient Repository repository;
+
+    /** Flags of objects touched in a {@link RootEntity#bulk(Runnable)} scope */
+    static final byte WRITTEN = 1, NOTIFY = 2;
+
+    /**
+     * Objects touched in the ongoing {@link RootEntity#bulk(Runnable)} scope, null outside of it. Each object is added
+     * once, when it gets its first flag
+     */
+    private transient ArrayList<MutableObject> bulkTouched;
+
+    /** Flags of this object in the ongoing bulk scope, see {@link Child#bulkFlags} */
+    transient byte bulkFlags;
+
     /**
      * Set that holds all {@link WrapperScope}s. As member of this class, this field
      * is not part of the data model itself and is ignored by the transactional system and {@link JsonParser}
@@ -81,6 +100,76 @@ public abstract class RootEntity implements MutableObject {
         return getObjectSynchronizedIn(this, dstRootEntity);
     }
 
+    /**
+     * Run edits of the data model with suspended per-write tracking. Written objects are only flagged while the edits
+     * run and are logged as changed once they are done. Wrappers are notified then as well, once per changed object,
+     * instead of after every write. Creations and deletions are tracked as usual. Nested scopes join the outer one.
+     * Use it for imports and transformations with many writes, the resulting commit is the same
+     */
+    public void bulk(Runnable edits) {
+        if (bulkTouched != null) {
+            edits.run();
+            return;
+        }
+        bulkTouched = new ArrayList<>();
+        try {
+            edits.run();
+        } finally {
+            ArrayList<MutableObject> touched = bulkTouched;
+            bulkTouched = null;
+            for (MutableObject mo : touched) {
+                if ((setBulkFlags(mo, (byte) 0) & WRITTEN) != 0 && repository != null)
+                    repository.logLocalChange(mo);
+            }
+            //wrappers may react with further edits, which are tracked as usual now
+            for (MutableObject mo : touched)
+                mo.notifyRegisteredWrappersAboutChange();
+        }
+    }
+
+    boolean inBulk() {
+        return bulkTouched != null;
+    }
+
+    /**
+     * Flag an object in the ongoing bulk scope
+     * @return true if the object didn't have the flag yet
+     */
+    boolean touch(MutableObject mo, byte flag) {
+        byte flags = mo instanceof Child ? ((Child<?>) mo).bulkFlags : ((RootEntity) mo).bulkFlags;
+        if ((flags & flag) != 0)
+            return false;
+        if (flags == 0)
+            bulkTouched.add(mo);
+        setBulkFlags(mo, (byte) (flags | flag));
+        return true;
+    }
+
+    /**
+     * @return the previous flags
+     */
+    private static byte setBulkFlags(MutableObject mo, byte flags) {
+        byte previous;
+        if (mo instanceof Child) {
+            previous = ((Child<?>) mo).bulkFlags;
+            ((Child<?>) mo).bulkFlags = flags;
+        }
+        else {
+            previous = ((RootEntity) mo).bulkFlags;
+            ((RootEntity) mo).bulkFlags = flags;
+        }
+        return previous;
+    }
+
+    /**
+     * Notify the wrappers of an object about a change now or, in a bulk scope, when it ends
+     */
+    void notifyAboutChange(MutableObject mo) {
+        if (bulkTouched != null)
+            touch(mo, NOTIFY);
+        else mo.notifyRegisteredWrappersAboutChange();
+    }
+
     /**
      * Commit (and push) local changes to the {@link Remote}.
      */
@@ -107,7 +196,7 @@ public abstract class RootEntity implements MutableObject {
     synchronized MutableObject getObjectSynchronizedIn(MutableObject mo, RootEntity dstRootEntity) {
         CommitId srcCommitId = getCurrentCommitId();
         CommitId dstCommitId = dstRootEntity.getCurrentCommitId();
-        Remote.ObjectState state = tm.repositories.get(this).remote.getKey(mo);
+        Remote.ObjectState state = repository.getState(mo);
         for (Commit commit : tm.commits.subMap(srcCommitId, false, dstCommitId, true).values()) {
             if (commit.getDeletionRecords().contains(state)) {
                 return null;
@@ -117,15 +206,15 @@ public abstract class RootEntity implements MutableObject {
                 state = commit.getChangeRecords().get(state);
             }
         }
-        MutableObject result = tm.repositories.get(dstRootEntity).remote.get(state);
+        MutableObject result = dstRootEntity.repository.remote.get(state);
         if (result == null)
             throw new TransactionException("no matching object found in destination root entity for object", state.hashCode());
         return result;
     }
 
     private CommitId getCurrentCommitId() {
-        if (!tm.repositories.containsKey(this))
+        if (repository == null)
             throw new NoTransactionsEnabledException();
-        return tm.repositories.get(this).currentCommitId;
+        return repository.currentCommitId;
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2023 Daniel Maier.
+ * Licensed under the MIT License.
+ */
+
+package net.scoreworks.treetools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+
+/**
+ * Fork-join task visiting the objects of an ownership tree. Whenever the pool has idle workers, the task hands the
+ * older half of its pending subtrees, which tend to be the bigger ones, to a new task of the same kind. Tasks don't
+ * synchronize with each other, so the data model must not be changed while they run.
+ */
+abstract class SubtreeTask extends RecursiveAction {
+    /** Number of objects visited between checks whether the task should share its work */
+    private static final int BATCH = 64;
+
+    private final ArrayList<MutableObject> worklist;
+
+    /**
+     * @param worklist roots of the subtrees to visit
+     */
+    SubtreeTask(ArrayList<MutableObject> worklist) {
+        this.worklist = worklist;
+    }
+
+    /**
+     * @return a task of the same kind for the given subtrees
+     */
+    abstract SubtreeTask newTask(ArrayList<MutableObject> worklist);
+
+    abstract void visit(MutableObject mo);
+
+    @Override
+    protected final void compute() {
+        ArrayList<SubtreeTask> forked = new ArrayList<>();
+        Consumer<Child<?>> collect = worklist::add;
+        int processed = 0;
+        while (!worklist.isEmpty()) {
+            if (++processed % BATCH == 0 && worklist.size() > 1 && getSurplusQueuedTaskCount() == 0) {
+                List<MutableObject> half = worklist.subList(0, worklist.size()/2);
+                SubtreeTask task = newTask(new ArrayList<>(half));
+                half.clear();
+                task.fork();
+                forked.add(task);
+            }
+            MutableObject mo = worklist.remove(worklist.size()-1);
+            visit(mo);
+            ClassMetadata.forEachChild(mo, collect);
+        }
+        for (SubtreeTask task : forked)
+            task.join();
+    }
+}
@@ -9,11 +9,11 @@ import net.scoreworks.treetools.commits.Commit;
 import net.scoreworks.treetools.commits.InvertedCommit;
 import net.scoreworks.treetools.exceptions.NoTransactionsEnabledException;
 
-import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
 import java.util.TreeMap;
 
 
@@ -37,16 +37,30 @@ public class TransactionManager {
         return transactionManager;
     }
 
-    /** Keep track of every existing {@link Repository} for the data model */
+    /** Keep track of every existing {@link Repository} for the data model. Changed while holding the lock of
+     * {@link TransactionManager#commits} */
     Map<RootEntity, Repository> repositories = new HashMap<>();
 
     /** Save all commits in a time-ordered manner. Commits document and coordinate changes across all repositories */
     final TreeMap<CommitId, Commit> commits = new TreeMap<>();
 
+    /** Records and their estimated size in {@link TransactionManager#commits}, changed together with it */
+    private int commitRecords;
+    private long commitBytes;
+
     /** Object responsible for grouping commits and providing a history for {@link TransactionManager#undo(RootEntity)}
      * and {@link TransactionManager#redo(RootEntity)} */
     History history;
 
+    /** Build remotes of data models on the common fork-join pool */
+    volatile boolean parallelRemoteBuilding;
+
+    /** Ignore field writes that don't change the field's value */
+    volatile boolean skipNoOpWrites;
+
+    /** Canonicalizes immutable values of states and parsed objects. Null if values are not interned */
+    volatile ValueInterner valueInterner;
+
     /** Print messages for debug purposes */
     static boolean verbose;
     public void setVerbose(boolean verbose) {
@@ -54,7 +68,7 @@ public class TransactionManager {
     }
 
     public boolean transactionsEnabled(RootEntity rootEntity) {
-        return repositories.containsKey(rootEntity);
+        return rootEntity.repository != null;
     }
 
     /**
@@ -62,12 +76,31 @@ public class TransactionManager {
      * new workable copies can be retrieved with {@link TransactionManager#clone(RootEntity)}
      */
     public void enableTransactionsForRootEntity(RootEntity rootEntity) {
+        enableTransactionsForRootEntity(rootEntity, false);
+    }
+
+    /**
+     * Enables transactions for a data model
+     * @param lazyRemote if true, object states are created on first demand (change, deletion, clone or lookup of a
+     *                   corresponding object) instead of walking the whole data model now. Useful for huge data models
+     *                   of which only a small part is edited
+     */
+    public void enableTransactionsForRootEntity(RootEntity rootEntity, boolean lazyRemote) {
         //transactions are enabled, if there exists at least one repository. If repositories is empty, create the
         //first repo for the given rootEntity
         if (repositories.isEmpty()) {
-            Repository repository = new Repository(rootEntity, new CommitId());
-            repositories.put(rootEntity, repository);
+            register(new Repository(rootEntity, new CommitId(), lazyRemote));
+        }
+    }
+
+    /**
+     * Link a repository with its data model, which enables tracking changes of the model
+     */
+    private void register(Repository repository) {
+        synchronized (commits) {
+            repositories.put(repository.rootEntity, repository);
         }
+        repository.rootEntity.repository = repository;
     }
 
     /**
@@ -78,36 +111,152 @@ public class TransactionManager {
         history = new History();
     }
 
+    /**
+     * Keep a {@link RemoteSnapshot} of the remote of the given data model for each commit it reaches from now on. Because
+     * snapshots share all unchanged entries with each other, each one costs memory in the order of the commit's changes
+     */
+    public void enableRemoteSnapshots(RootEntity rootEntity) {
+        Repository repository = rootEntity.repository;
+        if (repository == null)
+            throw new NoTransactionsEnabledException();
+        repository.enableSnapshots();
+    }
+
+    /**
+     * @return the remote of the given data model as it was at the given commit, or null if no snapshot was taken at or
+     * before that commit
+     */
+    public RemoteSnapshot getRemoteSnapshot(RootEntity rootEntity, CommitId commitId) {
+        Repository repository = rootEntity.repository;
+        if (repository == null)
+            throw new NoTransactionsEnabledException();
+        if (repository.snapshots == null)
+            throw new RuntimeException("Remote snapshots are not enabled!");
+        Map.Entry<CommitId, RemoteSnapshot> entry = repository.snapshots.floorEntry(commitId);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Release all snapshots of the given data model taken before the given commit
+     */
+    public void discardRemoteSnapshotsBefore(RootEntity rootEntity, CommitId commitId) {
+        Repository repository = rootEntity.repository;
+        if (repository == null)
+            throw new NoTransactionsEnabledException();
+        if (repository.snapshots != null)
+            repository.snapshots.headMap(commitId, false).clear();
+    }
+
+    /**
+     * Build the remote of data models for which transactions are enabled from now on with all workers of the common
+     * {@link java.util.concurrent.ForkJoinPool}, instead of a single-threaded walk. Independent subtrees are processed
+     * in parallel and cross-references between them are linked afterwards. Worthwhile for data models with many
+     * thousands of objects. The data model must not be changed while its remote is built
+     */
+    public void enableParallelRemoteBuilding() {
+        parallelRemoteBuilding = true;
+    }
+
+    /**
+     * Compare each tracked field write with the current value of the field. Writes of an equal value neither mark the
+     * object as changed nor notify its wrappers, and an object whose written fields all got their committed values
+     * back is no longer considered changed. Avoids empty change records, e.g. when a UI re-applies unchanged
+     * properties, at the cost of reading the field on every write
+     */
+    public void enableNoOpWriteSkipping() {
+        skipNoOpWrites = true;
+    }
+
+    /**
+     * Let object states and the {@link JsonParser} share one instance per distinct immutable value (as defined by
+     * equals()) instead of keeping equal copies, e.g. the same fraction or string created over and over. Values are
+     * pooled per type and referenced weakly
+     * @param maxValuesPerType number of distinct values remembered per type. Further values are used as they are
+     */
+    public void enableValueInterning(int maxValuesPerType) {
+        valueInterner = new ValueInterner(maxValuesPerType);
+    }
+
+    /**
+     * Check in parallel that a data model and the remote of its repository agree: every object that isn't locally
+     * created has a state, objects without uncommitted changes match their state and no references point to deleted
+     * objects. The data model must not be changed during verification. Cheap enough to be run periodically
+     */
+    public VerificationReport verify(RootEntity rootEntity) {
+        Repository repository = rootEntity.repository;
+        if (repository == null)
+            throw new NoTransactionsEnabledException();
+        return VerificationReport.verify(repository);
+    }
+
+    /**
+     * Estimate the memory retained by remotes, commits and history. Sizes are counted while states and records are
+     * added and removed, so creating the report only copies a few totals per remote and can be polled periodically,
+     * e.g. by a metrics exporter. Each remote is read while holding the lock of its root entity, which commits and
+     * pulls take as well. The counters of a remote can also be read while it grows on field writes, in which case
+     * the report may lag behind by the latest states
+     */
+    public MemoryReport getMemoryReport() {
+        List<Repository> repositories;
+        synchronized (commits) {
+            repositories = new ArrayList<>(this.repositories.values());
+        }
+        List<MemoryReport.RemoteUsage> remotes = new ArrayList<>();
+        for (Repository repository : repositories) {
+            //never taken while holding the lock of the commits, as commits and pulls take them the other way round
+            synchronized (repository.rootEntity) {
+                //the repository was removed by a shutdown in the meantime
+                if (repository.rootEntity.repository != repository)
+                    continue;
+                Map<Class<?>, Long> stateBytesByClass = new HashMap<>();
+                long indexBytes = repository.remote.estimateMemory(stateBytesByClass);
+                int snapshots = repository.snapshots == null ? 0 : repository.snapshots.size();
+                remotes.add(new MemoryReport.RemoteUsage(repository.rootEntity, repository.remote.size(), indexBytes, stateBytesByClass, snapshots));
+            }
+        }
+        synchronized (commits) {
+            int historyStates = 0, historyRecords = 0;
+            long historyBytes = 0;
+            if (history != null) {
+                historyStates = history.last.undoStates;
+                historyRecords = history.last.records + MemoryReport.records(history.ongoingCommit);
+                historyBytes = history.last.bytes + MemoryReport.commitBytes(history.ongoingCommit);
+            }
+            return new MemoryReport(remotes, commits.size(), commitRecords, commitBytes, historyStates, historyRecords, historyBytes);
+        }
+    }
+
     /**
      * @param rootEntity root of the data model that is to be copied. Needs to have transactions enabled.
      * @return a copy of the provided rootEntity that can engage in transactions
      */
     public RootEntity clone(RootEntity rootEntity) {
-        if (!repositories.containsKey(rootEntity))
+        if (rootEntity.repository == null)
             throw new NoTransactionsEnabledException();
 
         //get a new data model-specific rootEntity
         RootEntity newRootEntity = ClassMetadata.constructRootEntity(rootEntity.getClass());
-        Remote remoteToClone = repositories.get(rootEntity).remote;
-        //build an untracked initialization commit on the repository that is to be cloned
-        Commit initializationCommit = Commit.buildInitializationCommit(remoteToClone, rootEntity);
+        Remote remoteToClone;
+        Commit initializationCommit;
+        //completing the remote changes it, like commits and pulls do
+        synchronized (rootEntity) {
+            rootEntity.repository.completeRemote();
+            remoteToClone = rootEntity.repository.remote;
+            //build an untracked initialization commit on the repository that is to be cloned
+            initializationCommit = Commit.buildInitializationCommit(remoteToClone, rootEntity);
+        }
         //create new repository
-        Repository newRepository = new Repository(newRootEntity, repositories.get(rootEntity).currentCommitId);
+        Repository newRepository = new Repository(newRootEntity, rootEntity.repository.currentCommitId);
 
         //copy content of root entity and put it in emerging remote as well
-        for (Field field : ClassMetadata.getFields(newRootEntity)) {
-            field.setAccessible(true);
-            try {
-                field.set(newRootEntity, field.get(rootEntity));
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            }
+        for (FieldAccessor accessor : ClassMetadata.getFieldAccessors(newRootEntity)) {
+            accessor.set(newRootEntity, accessor.get(rootEntity));
         }
         newRepository.remote.put(remoteToClone.getKey(rootEntity), newRootEntity);
 
         //populate the data model from the initializationCommit
         new Pull(newRepository, initializationCommit);
-        repositories.put(newRootEntity, newRepository);
+        register(newRepository);
         return newRootEntity;
     }
 
@@ -117,15 +266,26 @@ public class TransactionManager {
     public void shutdown() {
         CommitId.reset();       //reset commit id counter
         ObjectId.reset();       //reset object id counter
-        repositories.clear();   //effectively disabling transactions
-        commits.clear();
-        history = null;
+        synchronized (commits) {
+            for (RootEntity rootEntity : repositories.keySet())
+                rootEntity.repository = null;
+            repositories.clear();   //effectively disabling transactions
+            commits.clear();
+            commitRecords = 0;
+            commitBytes = 0;
+            history = null;
+        }
+        parallelRemoteBuilding = false;
+        skipNoOpWrites = false;
+        valueInterner = null;
     }
 
     public void createUndoState() {
         if (history == null)
             throw new RuntimeException("Undos/Redos are not enabled!");
-        history.createUndoState();
+        synchronized (commits) {
+            history.createUndoState();
+        }
     }
 
     /**
@@ -138,10 +298,24 @@ public class TransactionManager {
                 if (repository.currentCommitId.compareTo(earliestCommitInUse) < 0)
                     earliestCommitInUse = repository.currentCommitId;
             }
-            commits.headMap(earliestCommitInUse, true).clear();
+            SortedMap<CommitId, Commit> obsolete = commits.headMap(earliestCommitInUse, true);
+            for (Commit commit : obsolete.values()) {
+                commitRecords -= MemoryReport.records(commit);
+                commitBytes -= MemoryReport.commitBytes(commit);
+            }
+            obsolete.clear();
         }
     }
 
+    /**
+     * Add a commit to {@link TransactionManager#commits}. Must hold the lock of the commits
+     */
+    private void retain(Commit commit) {
+        commits.put(commit.getCommitId(), commit);
+        commitRecords += MemoryReport.records(commit);
+        commitBytes += MemoryReport.commitBytes(commit);
+    }
+
 
     //=============these methods are called synchronized per RootEntity and are therefore package-private=============//
 
@@ -149,7 +323,7 @@ public class TransactionManager {
      * Package local changes into a {@link Commit} object
      */
     Commit commit(RootEntity rootEntity) {
-        Repository repository = repositories.get(rootEntity);
+        Repository repository = rootEntity.repository;
         //ensure transactions are enabled for rootEntity
         if (repository == null)
             throw new NoTransactionsEnabledException();
@@ -162,11 +336,12 @@ public class TransactionManager {
         repository.clearUncommittedChanges();
         repository.currentCommitId = commit.getCommitId();
         synchronized (commits) {
-            commits.put(commit.getCommitId(), commit);
+            retain(commit);
             if (history != null)
                 history.ongoingCommit.add(commit);
         }
         repository.currentCommitId = commit.getCommitId();
+        repository.recordSnapshot();
         if (verbose) System.out.println("\n========== COMMITTED "+ commit);
         return commit;
     }
@@ -175,7 +350,7 @@ public class TransactionManager {
      * Perform a pull ont the specified {@link RootEntity}. Returns {@code false} if there are no commits to pull
      */
     boolean pull(RootEntity rootEntity) {
-        Repository repository = repositories.get(rootEntity);
+        Repository repository = rootEntity.repository;
         if (repository == null)
             throw new NoTransactionsEnabledException();
         List<Commit> commitsToPull;
@@ -203,7 +378,7 @@ public class TransactionManager {
      * {@link TransactionManager#commits}
      */
     Commit undo(RootEntity rootEntity) {
-        Repository repository = repositories.get(rootEntity);
+        Repository repository = rootEntity.repository;
         if (repository == null)
             throw new NoTransactionsEnabledException();
         if (history == null)
@@ -215,7 +390,7 @@ public class TransactionManager {
             Commit invertedCommit = new InvertedCommit(undoCommit);
 
             synchronized (commits) {
-                commits.put(invertedCommit.getCommitId(), invertedCommit);
+                retain(invertedCommit);
             }
             if (verbose) System.out.println("\n========== UNDO "+ invertedCommit);
             new Pull(repository, invertedCommit);
@@ -230,7 +405,7 @@ public class TransactionManager {
      * {@link TransactionManager#commits}
      */
     Commit redo(RootEntity rootEntity) {
-        Repository repository = repositories.get(rootEntity);
+        Repository repository = rootEntity.repository;
         if (repository == null)
             throw new NoTransactionsEnabledException();
         if (history == null)
@@ -240,7 +415,7 @@ public class TransactionManager {
             //copy the commit and give it a proper id
             Commit commit = new Commit(history.head.self);
             synchronized (commits) {
-                commits.put(commit.getCommitId(), commit);
+                retain(commit);
             }
             if (verbose) System.out.println("\n========== REDO "+ commit);
             new Pull(repository, commit);
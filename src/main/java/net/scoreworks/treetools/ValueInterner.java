@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2023 Daniel Maier.
+ * Licensed under the MIT License.
+ */
+
+package net.scoreworks.treetools;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Optional canonicalization of immutable field values, enabled with {@link TransactionManager#enableValueInterning(int)}.
+ * {@link Remote.ObjectState}s and objects created by the {@link JsonParser} then refer to one shared instance per
+ * distinct value (as defined by equals()) instead of keeping equal copies around, e.g. the same {@code Fraction}
+ * created for thousands of positions.
+ * Pools are kept per type, hold their values weakly and stop accepting new values once they reach their capacity, so
+ * they never keep values alive or grow without bound. They can be used by several threads at once, e.g. while a remote
+ * is built in parallel. The data model's own immutability requirements are what make sharing instances safe.
+ */
+final class ValueInterner {
+    /** Pools by value type */
+    private final ConcurrentMap<Class<?>, Pool> pools = new ConcurrentHashMap<>();
+
+    /** Maximum number of values held per type */
+    private final int capacity;
+
+    /**
+     * @param maxValuesPerType number of distinct values remembered per type. Further values are used as they are
+     */
+    ValueInterner(int maxValuesPerType) {
+        if (maxValuesPerType <= 0)
+            throw new IllegalArgumentException("pool capacity must be positive");
+        capacity = maxValuesPerType;
+    }
+
+    /**
+     * @return a canonical instance equal to the given value, or the value itself if interning is disabled, the value is
+     * not interned (null, enums, data model objects and their states, arrays) or its pool is full
+     */
+    static Object intern(Object value) {
+        ValueInterner interner = TransactionManager.getInstance().valueInterner;
+        if (interner == null || value == null || value instanceof Enum || value instanceof MutableObject
+                || value instanceof Remote.ObjectState || value.getClass().isArray())
+            return value;
+        return interner.pools.computeIfAbsent(value.getClass(), c -> new Pool(interner.capacity)).intern(value);
+    }
+
+    private static final class Pool {
+        //keys reference their values only weakly, so an entry disappears once nothing else uses the value
+        private final ConcurrentMap<WeakKey, WeakKey> values = new ConcurrentHashMap<>();
+        private final ReferenceQueue<Object> cleared = new ReferenceQueue<>();
+        private final int capacity;
+
+        Pool(int capacity) {
+            this.capacity = capacity;
+        }
+
+        Object intern(Object value) {
+            for (Reference<?> key; (key = cleared.poll()) != null; )
+                values.remove(key);
+            WeakKey canonical = values.get(new WeakKey(value, null));
+            Object canonicalValue = canonical == null ? null : canonical.get();
+            if (canonicalValue != null)
+                return canonicalValue;
+            if (values.size() >= capacity)
+                return value;
+            WeakKey key = new WeakKey(value, cleared);
+            canonical = values.putIfAbsent(key, key);
+            //another thread added an equal value first
+            canonicalValue = canonical == null ? null : canonical.get();
+            return canonicalValue != null ? canonicalValue : value;
+        }
+    }
+
+    /**
+     * Weak reference that is equal to other keys with an equal value. Keys whose value was collected are only equal
+     * to themselves
+     */
+    private static final class WeakKey extends WeakReference<Object> {
+        private final int hash;
+
+        WeakKey(Object value, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            hash = value.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof WeakKey))
+                return false;
+            Object value = get();
+            return value != null && value.equals(((WeakKey) o).get());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
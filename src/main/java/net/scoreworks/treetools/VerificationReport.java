@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2023 Daniel Maier.
+ * Licensed under the MIT License.
+ */
+
+package net.scoreworks.treetools;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * Result of {@link TransactionManager#verify(RootEntity)}, comparing a data model with the {@link Remote} of its
+ * {@link Repository}. A model and its remote drift apart if changes bypass the change tracking, e.g. fields written
+ * by code that isn't woven. Such a drift otherwise only shows up when another repository fails to pull the next commit.
+ */
+public final class VerificationReport {
+    private final List<MutableObject> missingStates;
+    private final List<MutableObject> staleStates;
+    private final List<DanglingReference> danglingReferences;
+    private final int verifiedObjects;
+
+    private VerificationReport(List<MutableObject> missingStates, List<MutableObject> staleStates,
+                               List<DanglingReference> danglingReferences, int verifiedObjects) {
+        this.missingStates = Collections.unmodifiableList(missingStates);
+        this.staleStates = Collections.unmodifiableList(staleStates);
+        this.danglingReferences = Collections.unmodifiableList(danglingReferences);
+        this.verifiedObjects = verifiedObjects;
+    }
+
+    /**
+     * @return objects of the data model that are neither locally created nor part of the remote
+     */
+    public List<MutableObject> getMissingStates() {
+        return missingStates;
+    }
+
+    /**
+     * @return objects without uncommitted changes whose content differs from their state in the remote
+     */
+    public List<MutableObject> getStaleStates() {
+        return staleStates;
+    }
+
+    /**
+     * @return references of the data model or the remote to objects that are no longer part of it
+     */
+    public List<DanglingReference> getDanglingReferences() {
+        return danglingReferences;
+    }
+
+    /**
+     * @return number of visited objects of the data model. An object held twice by its owner is counted twice
+     */
+    public int getVerifiedObjects() {
+        return verifiedObjects;
+    }
+
+    public boolean isConsistent() {
+        return missingStates.isEmpty() && staleStates.isEmpty() && danglingReferences.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder strb = new StringBuilder();
+        strb.append(verifiedObjects).append(" objects verified");
+        for (MutableObject mo : missingStates)
+            strb.append("\nmissing state: ").append(mo.getClass().getSimpleName());
+        for (MutableObject mo : staleStates)
+            strb.append("\nstale state: ").append(mo.getClass().getSimpleName());
+        for (DanglingReference reference : danglingReferences)
+            strb.append("\n").append(reference);
+        return strb.toString();
+    }
+
+    /**
+     * A field that refers to an object which was removed from the data model. If {@link DanglingReference#inRemote}
+     * is true, the state of the source object holds the reference, otherwise the source object itself
+     */
+    public static final class DanglingReference {
+        private final MutableObject source;
+        private final Field field;
+        private final boolean inRemote;
+
+        DanglingReference(MutableObject source, Field field, boolean inRemote) {
+            this.source = source;
+            this.field = field;
+            this.inRemote = inRemote;
+        }
+
+        public MutableObject getSource() {
+            return source;
+        }
+
+        public Field getField() {
+            return field;
+        }
+
+        public boolean isInRemote() {
+            return inRemote;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DanglingReference))
+                return false;
+            DanglingReference other = (DanglingReference) o;
+            return source == other.source && field.equals(other.field) && inRemote == other.inRemote;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(source) + field.hashCode()) + Boolean.hashCode(inRemote);
+        }
+
+        @Override
+        public String toString() {
+            return "dangling reference in " + (inRemote ? "state of " : "") + source.getClass().getSimpleName() + "." + field.getName();
+        }
+    }
+
+
+    //==========VERIFICATION====================================================
+
+    /**
+     * Verify all objects of the data model of a repository in parallel. The data model must not be changed meanwhile
+     */
+    static VerificationReport verify(Repository repository) {
+        ConcurrentLinkedQueue<VerifyTask> tasks = new ConcurrentLinkedQueue<>();
+        ArrayList<MutableObject> roots = new ArrayList<>();
+        roots.add(repository.rootEntity);
+        ForkJoinPool.commonPool().invoke(new VerifyTask(roots, tasks, repository));
+
+        //objects held twice by their owner are visited twice, but reported once
+        Set<MutableObject> missingStates = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<MutableObject> staleStates = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<DanglingReference> danglingReferences = new LinkedHashSet<>();
+        int verifiedObjects = 0;
+        for (VerifyTask task : tasks) {
+            missingStates.addAll(task.missingStates);
+            staleStates.addAll(task.staleStates);
+            danglingReferences.addAll(task.danglingReferences);
+            verifiedObjects += task.verifiedObjects;
+        }
+        return new VerificationReport(new ArrayList<>(missingStates), new ArrayList<>(staleStates),
+                new ArrayList<>(danglingReferences), verifiedObjects);
+    }
+
+    private static final class VerifyTask extends SubtreeTask {
+        private final ConcurrentLinkedQueue<VerifyTask> tasks;
+        private final Repository repository;
+        private final Remote remote;
+
+        final List<MutableObject> missingStates = new ArrayList<>();
+        final List<MutableObject> staleStates = new ArrayList<>();
+        final List<DanglingReference> danglingReferences = new ArrayList<>();
+        int verifiedObjects;
+
+        VerifyTask(ArrayList<MutableObject> worklist, ConcurrentLinkedQueue<VerifyTask> tasks, Repository repository) {
+            super(worklist);
+            this.tasks = tasks;
+            this.repository = repository;
+            this.remote = repository.remote;
+            tasks.add(this);
+        }
+
+        @Override
+        SubtreeTask newTask(ArrayList<MutableObject> worklist) {
+            return new VerifyTask(worklist, tasks, repository);
+        }
+
+        @Override
+        void visit(MutableObject mo) {
+            verifiedObjects++;
+            FieldAccessor[] accessors = ClassMetadata.getMetadata(mo).fieldAccessors;
+            for (FieldAccessor accessor : accessors) {
+                if (accessor.primitive)
+                    continue;
+                Object value = accessor.get(mo);
+                if (value instanceof MutableObject && !isPartOfModel((MutableObject) value))
+                    danglingReferences.add(new DanglingReference(mo, accessor.field, false));
+            }
+            if (isLocallyCreated(mo))
+                return;
+            Remote.ObjectState state = remote.getKey(mo);
+            if (state == null) {
+                //a partial remote holds the states of unchanged objects only implicitly
+                if (!repository.hasPartialRemote())
+                    missingStates.add(mo);
+                return;
+            }
+            for (FieldAccessor accessor : accessors) {
+                if (accessor.primitive)
+                    continue;
+                Object value = state.getReference(accessor.slot);
+                if (value instanceof Remote.ObjectState && remote.get((Remote.ObjectState) value) == null)
+                    danglingReferences.add(new DanglingReference(mo, accessor.field, true));
+            }
+            if (!repository.locallyChangedContains(mo) && !matches(mo, state, accessors))
+                staleStates.add(mo);
+        }
+
+        private boolean isLocallyCreated(MutableObject mo) {
+            return mo instanceof Child && repository.locallyCreatedContains((Child<?>) mo);
+        }
+
+        /**
+         * @return false if the object was deleted or belongs to another data model
+         */
+        private boolean isPartOfModel(MutableObject mo) {
+            if (mo.getRootEntity() != repository.rootEntity)
+                return false;
+            if (mo instanceof Child && repository.locallyDeletedContains((Child<?>) mo))
+                return false;
+            return isLocallyCreated(mo) || repository.hasPartialRemote() || remote.getKey(mo) != null;
+        }
+
+        private boolean matches(MutableObject mo, Remote.ObjectState state, FieldAccessor[] accessors) {
+            Object[] constructionParams = mo.constructorParameterObjects();
+            Object[] stateParams = state.getConstructionParams();
+            if (constructionParams.length != stateParams.length)
+                return false;
+            for (int i=0; i<constructionParams.length; i++) {
+                if (!matches(constructionParams[i], stateParams[i]))
+                    return false;
+            }
+            for (FieldAccessor accessor : accessors) {
+                if (accessor.primitive) {
+                    if (accessor.getBits(mo) != state.getPrimitive(accessor))
+                        return false;
+                }
+                else if (!matches(accessor.get(mo), state.getReference(accessor.slot)))
+                    return false;
+            }
+            return true;
+        }
+
+        private boolean matches(Object value, Object stateValue) {
+            if (value instanceof MutableObject)
+                return stateValue instanceof Remote.ObjectState && remote.get((Remote.ObjectState) stateValue) == value;
+            return Objects.equals(value, stateValue);
+        }
+    }
+}
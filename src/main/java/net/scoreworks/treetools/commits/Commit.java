@@ -8,9 +8,10 @@ package net.scoreworks.treetools.commits;
 import net.scoreworks.treetools.*;
 import org.apache.commons.collections4.MapUtils;
 import org.apache.commons.collections4.SetUtils;
-import org.apache.commons.collections4.bidimap.DualHashBidiMap;
+import org.apache.commons.collections4.bidimap.DualLinkedHashBidiMap;
 
 import java.util.*;
+import java.util.function.Consumer;
 
 
 /**
@@ -43,14 +44,20 @@ public class Commit {
      * Keep track of changed (but not created) objects since the last commit. Stored as a pair of their old and
      * new {@link Remote.ObjectState}
      */
-    protected final DualHashBidiMap<Remote.ObjectState, Remote.ObjectState> changeRecords;
+    protected final DualLinkedHashBidiMap<Remote.ObjectState, Remote.ObjectState> changeRecords;
+
+    /**
+     * Sum of {@link Remote.ObjectState#estimatedSize()} over all recorded states, counted as records are added so
+     * the {@link MemoryReport} doesn't need to walk them
+     */
+    private long stateBytes;
 
 
     public Commit() {
         commitId = null;
-        this.creationRecords = new HashSet<>();
-        this.deletionRecords = new HashSet<>();
-        this.changeRecords = new DualHashBidiMap<>();
+        this.creationRecords = new LinkedHashSet<>();
+        this.deletionRecords = new LinkedHashSet<>();
+        this.changeRecords = new DualLinkedHashBidiMap<>();
     }
 
     /**
@@ -61,13 +68,20 @@ public class Commit {
         this.creationRecords = commit.creationRecords;
         this.deletionRecords = commit.deletionRecords;
         this.changeRecords = commit.changeRecords;
+        this.stateBytes = commit.stateBytes;
     }
 
-    protected Commit(Set<Remote.ObjectState> deletionRecords, Set<Remote.ObjectState> creationRecords, DualHashBidiMap<Remote.ObjectState, Remote.ObjectState> changeRecords) {
+    protected Commit(Set<Remote.ObjectState> deletionRecords, Set<Remote.ObjectState> creationRecords, DualLinkedHashBidiMap<Remote.ObjectState, Remote.ObjectState> changeRecords) {
         commitId = new CommitId();
         this.deletionRecords = deletionRecords;
         this.creationRecords = creationRecords;
         this.changeRecords = changeRecords;
+        for (Remote.ObjectState state : deletionRecords)
+            stateBytes += state.estimatedSize();
+        for (Remote.ObjectState state : creationRecords)
+            stateBytes += state.estimatedSize();
+        for (Map.Entry<Remote.ObjectState, Remote.ObjectState> entry : changeRecords.entrySet())
+            stateBytes += entry.getKey().estimatedSize() + entry.getValue().estimatedSize();
     }
 
     /**
@@ -76,9 +90,9 @@ public class Commit {
      */
     public Commit(Repository repository) {
         commitId = new CommitId();
-        this.creationRecords = new HashSet<>();
-        this.deletionRecords = new HashSet<>();
-        this.changeRecords = new DualHashBidiMap<>();
+        this.creationRecords = new LinkedHashSet<>();
+        this.deletionRecords = new LinkedHashSet<>();
+        this.changeRecords = new DualLinkedHashBidiMap<>();
         Remote remote = repository.getRemote();
 
         //create ModificationRecords for DELETED objects
@@ -91,7 +105,7 @@ public class Commit {
         List<Child<?>> removeFromRemote = new ArrayList<>();
         Child<?> ch = repository.getOneDeletion();
         while (ch != null) {
-            deletionRecords.add(remote.getKey(ch));
+            record(deletionRecords, remote.getKey(ch));
             //don't remove from remote yet, because this destroys owner information for possible deletion of children
             removeFromRemote.add(ch);
             repository.removeDeletion(ch);
@@ -123,28 +137,41 @@ public class Commit {
      * Process a local creation into a creationRecord. Makes sure that all {@link Remote.ObjectState}s used either
      * for construction parameters or cross-references, are up-to-date
      */
-    private void commitCreation(Repository repository, Child<?> ch) {
+    private void commitCreation(Repository repository, Child<?> first) {
         //creationRecord contains states needed to construct this object. These states have to be present in the
-        //remote. The method makes sure this is the case by recursively processing these creation or changes first
-
-        //loop over all objects needed for construction. Exclude Immutable objects
-        for (Object obj : ch.constructorParameterObjects()) {
-            if (obj instanceof MutableObject) {
-                MutableObject mo = (MutableObject) obj;
-                if (mo instanceof Child<?> && repository.locallyCreatedContains((Child<?>) mo))
-                    commitCreation(repository, (Child<?>) mo);
-                else if (repository.locallyChangedContains(mo))
-                    commitChange(repository, mo);
+        //remote. The method makes sure this is the case by processing these creation or changes first. Pending
+        //creations are kept on a stack, so long chains of new owners and keys don't grow the call stack
+        List<Child<?>> pending = new ArrayList<>();
+        pending.add(first);
+        while (!pending.isEmpty()) {
+            Child<?> ch = pending.get(pending.size()-1);
+            Object[] params = ch.constructorParameterObjects();
+            //loop over all objects needed for construction. Exclude Immutable objects
+            Child<?> createdParam = null;
+            for (Object obj : params) {
+                if (obj instanceof Child<?> && repository.locallyCreatedContains((Child<?>) obj)) {
+                    createdParam = (Child<?>) obj;
+                    break;
+                }
+            }
+            if (createdParam != null) {
+                pending.add(createdParam);
+                continue;
+            }
+            for (Object obj : params) {
+                if (obj instanceof MutableObject && repository.locallyChangedContains((MutableObject) obj))
+                    commitChange(repository, (MutableObject) obj);
             }
+            //object is not currently present in remote, so generate a NEW state and put it in remote. This will also create
+            //states for cross-references if needed. If this objects' state already got created through this mechanism,
+            //this state is returned from the remote (and no new one created)
+            Remote.ObjectState newKey = repository.getRemote().createObjectState(ch);
+            //now its save to get the states of owner/keys from the remote and create the creation record with them
+            record(creationRecords, newKey);
+            //log of from creation tasks
+            repository.removeCreation(ch);
+            pending.remove(pending.size()-1);
         }
-        //object is not currently present in remote, so generate a NEW state and put it in remote. This will also create
-        //states for cross-references if needed. If this objects' state already got created through this mechanism,
-        //this state is returned from the remote (and no new one created)
-        Remote.ObjectState newKey = repository.getRemote().createObjectState(ch);
-        //now its save to get the states of owner/keys from the remote and create the creation record with them
-        creationRecords.add(newKey);
-        //log of from creation tasks
-        repository.removeCreation(ch);
     }
 
 
@@ -157,27 +184,35 @@ public class Commit {
         //updates the state by creating a new state with the same hashCode, so that other states that point to the
         //before state will access the new after state automatically
         //This will also create states for cross-references if needed
-        Remote.ObjectState after = repository.getRemote().updateObjectState(mo, before);
-        changeRecords.put(before, after);
+        Remote.ObjectState after = repository.getRemote().updateObjectState(mo, before, repository.getWrittenFields(mo));
+        recordChange(before, after);
         //log of from change tasks
         repository.removeChange(mo);
     }
 
     /**
      * Build an untracked commit used for initial cloning of a data model by parsing the content of a given {@link RootEntity}
-     * recursively into a {@link Remote} and adding the object to the commits' {@link Commit#creationRecords}
+     * into a {@link Remote} and adding the object to the commits' {@link Commit#creationRecords}
      */
     public static Commit buildInitializationCommit(Remote remote, RootEntity rootEntity) {
         Commit commit = new Commit();
-        parseMutableObject(remote, commit, rootEntity);
-        return commit;
-    }
-    private static void parseMutableObject(Remote remote, Commit commit, MutableObject mo) {
-        if (!(mo instanceof RootEntity))
-            commit.creationRecords.add(remote.getKey(mo));
-        for (Child<?> child : ClassMetadata.getChildren(mo)) {
-            parseMutableObject(remote, commit, child);
+        //pending children are kept in a worklist, so deep ownership trees don't grow the call stack. Children are
+        //pushed in reverse, so records are added in the same order a recursive walk would visit the objects
+        ArrayList<Child<?>> worklist = new ArrayList<>();
+        ArrayList<Child<?>> children = new ArrayList<>();
+        Consumer<Child<?>> collect = children::add;
+        ClassMetadata.forEachChild(rootEntity, collect);
+        Collections.reverse(children);
+        worklist.addAll(children);
+        while (!worklist.isEmpty()) {
+            Child<?> child = worklist.remove(worklist.size()-1);
+            commit.record(commit.creationRecords, remote.getKey(child));
+            children.clear();
+            ClassMetadata.forEachChild(child, collect);
+            Collections.reverse(children);
+            worklist.addAll(children);
         }
+        return commit;
     }
 
     public CommitId getCommitId() {
@@ -197,6 +232,13 @@ public class Commit {
         return MapUtils.unmodifiableMap(changeRecords.inverseBidiMap());
     }
 
+    /**
+     * @return estimated size of the recorded states in bytes. A state is counted for each record holding it
+     */
+    public long getEstimatedStateBytes() {
+        return stateBytes;
+    }
+
     public boolean isEmpty() {
         return (deletionRecords.isEmpty() && creationRecords.isEmpty() && changeRecords.isEmpty());
     }
@@ -207,7 +249,7 @@ public class Commit {
                     deletionRecords.contains(creationState) ||
                     changeRecords.containsValue(creationState))
                 throw new RuntimeException("Tried to create an object already present in commit!");
-            creationRecords.add(creationState);
+            record(creationRecords, creationState);
         }
 
         for (Remote.ObjectState deleteState : commit.deletionRecords) {
@@ -216,20 +258,24 @@ public class Commit {
                 Remote.ObjectState beforeState = changeRecords.getKey(deleteState);
                 deletionRecords.add(beforeState);
                 changeRecords.removeValue(deleteState);
+                //the before state moves to the deletions, only the after state is dropped
+                stateBytes -= deleteState.estimatedSize();
             }
             //deletion is in creationRecords
             else if (creationRecords.contains(deleteState)) {
                 creationRecords.remove(deleteState);
+                stateBytes -= deleteState.estimatedSize();
             }
             else if (deletionRecords.contains(deleteState))
                 throw new RuntimeException("Tried to delete an object that is already deleted!");
                 //not contained so far
-            else deletionRecords.add(deleteState);
+            else record(deletionRecords, deleteState);
         }
 
         for (Map.Entry<Remote.ObjectState, Remote.ObjectState> entry : commit.changeRecords.entrySet()) {
             Remote.ObjectState before = entry.getKey();
             Remote.ObjectState after = entry.getValue();
+            //replacing a state with a later state of the same object leaves the size as it is
             //change was considered a creation so far - update creation record
             if (creationRecords.contains(before)) {
                 //put overrides existing values but not existing keys which we also want -> remove old entry first
@@ -247,10 +293,20 @@ public class Commit {
             }
             //not contained so far
             else
-                changeRecords.put(before, entry.getValue());
+                recordChange(before, after);
         }
     }
 
+    private void record(Set<Remote.ObjectState> records, Remote.ObjectState state) {
+        if (records.add(state))
+            stateBytes += state.estimatedSize();
+    }
+
+    private void recordChange(Remote.ObjectState before, Remote.ObjectState after) {
+        changeRecords.put(before, after);
+        stateBytes += before.estimatedSize() + after.estimatedSize();
+    }
+
     @Override
     public String toString() {
         StringBuilder strb = new StringBuilder();
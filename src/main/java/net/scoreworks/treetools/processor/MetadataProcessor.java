@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2023 Daniel Maier.
+ * Licensed under the MIT License.
+ */
+
+package net.scoreworks.treetools.processor;
+
+import net.scoreworks.treetools.GeneratedMetadata;
+import net.scoreworks.treetools.MutableObject;
+import net.scoreworks.treetools.annotations.AbstractClass;
+import net.scoreworks.treetools.annotations.PolymorphOwner;
+import net.scoreworks.treetools.annotations.TransactionalConstructor;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.*;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+
+/**
+ * Annotation processor that analyzes data model classes at compile time and generates a {@link GeneratedMetadata}
+ * implementation for each of them. Classes are picked up if they mark a {@link TransactionalConstructor} or are annotated
+ * with {@link PolymorphOwner} or {@link AbstractClass}. Fields are classified the same way
+ * {@link net.scoreworks.treetools.ClassMetadata} does it at runtime and violations of the data model rules (including
+ * mutable custom field types) are reported as compile errors.
+ * To use it, add the {@code processor} jar of TreeTools to the {@code annotationProcessor} configuration of the data
+ * model project. The main jar doesn't register the processor, so it doesn't run just because TreeTools is on the classpath
+ */
+@SupportedAnnotationTypes({
+        "net.scoreworks.treetools.annotations.TransactionalConstructor",
+        "net.scoreworks.treetools.annotations.PolymorphOwner",
+        "net.scoreworks.treetools.annotations.AbstractClass"})
+public class MetadataProcessor extends AbstractProcessor {
+    private static final String TRANSACTION_PACKAGE = "net.scoreworks.treetools";
+
+    private Types types;
+    private Elements elements;
+    private Messager messager;
+    private TypeMirror mutableObject, collection, map, string, voidType;
+
+    /** Qualified names of classes metadata was already generated for (processing runs in several rounds) */
+    private final Set<String> processed = new HashSet<>();
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        types = processingEnv.getTypeUtils();
+        elements = processingEnv.getElementUtils();
+        messager = processingEnv.getMessager();
+        mutableObject = erasure(MutableObject.class.getCanonicalName());
+        collection = erasure(Collection.class.getCanonicalName());
+        map = erasure(Map.class.getCanonicalName());
+        string = erasure(String.class.getCanonicalName());
+        voidType = erasure(Void.class.getCanonicalName());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Set<TypeElement> modelClasses = new LinkedHashSet<>();
+        for (Element e : roundEnv.getElementsAnnotatedWith(TransactionalConstructor.class))
+            modelClasses.add((TypeElement) e.getEnclosingElement());
+        for (Element e : roundEnv.getElementsAnnotatedWith(PolymorphOwner.class))
+            modelClasses.add((TypeElement) e);
+        for (Element e : roundEnv.getElementsAnnotatedWith(AbstractClass.class))
+            modelClasses.add((TypeElement) e);
+
+        for (TypeElement type : modelClasses) {
+            //immutable objects may also mark a constructor, but they are not described by ClassMetadata
+            if (!types.isAssignable(types.erasure(type.asType()), mutableObject))
+                continue;
+            if (!processed.add(type.getQualifiedName().toString()))
+                continue;
+            Analysis analysis = new Analysis(type);
+            if (analysis.valid) {
+                try {
+                    write(type, analysis);
+                } catch (IOException e) {
+                    messager.printMessage(Diagnostic.Kind.ERROR, "could not write metadata: " + e.getMessage(), type);
+                }
+            }
+        }
+        //don't claim the annotations, they are also read at runtime
+        return false;
+    }
+
+
+    //==========ANALYSIS===========================================================
+
+    /**
+     * Mirrors ClassMetadata.traceClassFields() on the language model
+     */
+    private class Analysis {
+        final List<String> fieldNames = new ArrayList<>();
+        final List<Integer> fieldLevels = new ArrayList<>();
+        final List<String> collectionNames = new ArrayList<>();
+        final List<Integer> collectionLevels = new ArrayList<>();
+        List<String> constructorParameters;
+        final List<String> subclasses = new ArrayList<>();
+        boolean valid = true;
+
+        Analysis(TypeElement type) {
+            int level = 0;
+            TypeElement iterator = type;
+            //stop when reaching transaction package, meaning owners and keys won't be considered
+            while (iterator != null && !isTransactionPackage(iterator) && !iterator.getQualifiedName().contentEquals(Object.class.getName())) {
+                for (VariableElement field : ElementFilter.fieldsIn(iterator.getEnclosedElements())) {
+                    Set<Modifier> modifiers = field.getModifiers();
+                    if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT))
+                        continue;
+                    classifyField(field, level);
+                }
+                iterator = superclassOf(iterator);
+                level++;
+            }
+
+            for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+                if (constructor.getAnnotation(TransactionalConstructor.class) == null)
+                    continue;
+                constructorParameters = new ArrayList<>();
+                for (VariableElement param : constructor.getParameters())
+                    constructorParameters.add(classLiteral(param.asType()));
+                //keys of the object must be immutable if they are no MutableObjects
+                for (int i=1; i<constructor.getParameters().size(); i++) {
+                    TypeMirror keyType = constructor.getParameters().get(i).asType();
+                    if (!isMutableObject(keyType) && isComplexObject(keyType))
+                        checkImmutable(keyType, constructor.getParameters().get(i), new HashSet<>());
+                }
+            }
+
+            AnnotationMirror abstractClass = findAnnotation(type, AbstractClass.class);
+            if (abstractClass != null) {
+                for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : abstractClass.getElementValues().entrySet()) {
+                    if (!entry.getKey().getSimpleName().contentEquals("subclasses"))
+                        continue;
+                    for (Object value : (List<?>) entry.getValue().getValue())
+                        subclasses.add(classLiteral((TypeMirror) ((AnnotationValue) value).getValue()));
+                }
+            }
+        }
+
+        private void classifyField(VariableElement field, int level) {
+            TypeMirror type = field.asType();
+            //containers of any sort(Arrays, Collections, Maps) can only hold MutableObjects because otherwise changing
+            //of the container elements can't be tracked by transactional system!
+            if (type.getKind() == TypeKind.ARRAY) {
+                if (!isMutableObject(((ArrayType) type).getComponentType()))
+                    error(field, "contains non DataModelEntities in array \""+field.getSimpleName()+"\" which is illegal, because changes of this field can't be tracked!");
+                collectionNames.add(field.getSimpleName().toString());
+                collectionLevels.add(level);
+            }
+            else if (types.isAssignable(types.erasure(type), collection) || types.isAssignable(types.erasure(type), map)) {
+                boolean isMap = !types.isAssignable(types.erasure(type), collection);
+                List<? extends TypeMirror> arguments = type.getKind() == TypeKind.DECLARED ?
+                        ((DeclaredType) type).getTypeArguments() : Collections.<TypeMirror>emptyList();
+                //the stored type is the first generic type for collections and assumed to be the last one for maps
+                TypeMirror storedType = arguments.isEmpty() ? null : arguments.get(isMap ? arguments.size()-1 : 0);
+                if (storedType == null || storedType.getKind() != TypeKind.DECLARED || !isMutableObject(storedType))
+                    error(field, "contains non DataModelEntities in "+(isMap ? "map" : "collection")+" \""+field.getSimpleName()+"\" which is illegal, because changes of this field can't be tracked!");
+                collectionNames.add(field.getSimpleName().toString());
+                collectionLevels.add(level);
+            }
+            //field is MutableObject / immutable object / primitive / wrapper class / String / Enum / Void
+            else {
+                fieldNames.add(field.getSimpleName().toString());
+                fieldLevels.add(level);
+                if (!isMutableObject(type) && isComplexObject(type))
+                    checkImmutable(type, field, new HashSet<>());
+            }
+        }
+
+        /**
+         * Compile time equivalent of ClassMetadata.throwIfMutable()
+         */
+        private void checkImmutable(TypeMirror type, Element usage, Set<String> visited) {
+            if (type.getKind() != TypeKind.DECLARED) {
+                error(usage, "uses "+type+" which can't be checked for immutability!");
+                return;
+            }
+            TypeElement element = (TypeElement) types.asElement(type);
+            if (!visited.add(element.getQualifiedName().toString()))
+                return;
+            if (!element.getModifiers().contains(Modifier.FINAL)) {
+                error(usage, element.getSimpleName()+" is not final and therefore mutable, which is illegal for a non DataModelEntity, because changes can't be tracked!");
+                return;
+            }
+            boolean hasDefaultConstructor = false;
+            for (ExecutableElement constructor : ElementFilter.constructorsIn(element.getEnclosedElements())) {
+                if (constructor.getParameters().isEmpty())
+                    hasDefaultConstructor = true;
+            }
+            if (!hasDefaultConstructor)
+                error(usage, element.getSimpleName()+" needs to have a default constructor with no input arguments!");
+
+            //check class fields including inherited ones
+            for (TypeElement iterator = element; iterator != null && !iterator.getQualifiedName().contentEquals(Object.class.getName()); iterator = superclassOf(iterator)) {
+                for (VariableElement field : ElementFilter.fieldsIn(iterator.getEnclosedElements())) {
+                    TypeMirror fieldType = field.asType();
+                    //don't allow immutable objects to be owners of MutableObjects!
+                    if (isMutableObject(fieldType)) {
+                        error(usage, element.getSimpleName()+" can't be owner of a DataModelEntity!");
+                        continue;
+                    }
+                    Set<Modifier> modifiers = field.getModifiers();
+                    if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT))
+                        continue;
+                    if (!modifiers.contains(Modifier.FINAL))
+                        error(usage, element.getSimpleName()+" must be immutable but contains mutable field \""+field.getSimpleName()+"\". Make it a field whose changes " +
+                                "are not tracked by declaring it static or transient or make it final!");
+                    else if (isComplexObject(fieldType))
+                        checkImmutable(fieldType, usage, visited);
+                }
+            }
+        }
+
+        private void error(Element element, String message) {
+            valid = false;
+            messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+        }
+    }
+
+
+    //==========CODE GENERATION====================================================
+
+    private void write(TypeElement type, Analysis analysis) throws IOException {
+        String binaryName = elements.getBinaryName(type).toString();
+        String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+        String simpleName = GeneratedMetadata.classNameOf(binaryName).substring(packageName.isEmpty() ? 0 : packageName.length()+1);
+
+        StringBuilder strb = new StringBuilder();
+        if (!packageName.isEmpty())
+            strb.append("package ").append(packageName).append(";\n\n");
+        strb.append("/** Generated by ").append(MetadataProcessor.class.getSimpleName()).append(" for {@link ")
+                .append(type.getQualifiedName()).append("}. Do not edit! */\n");
+        strb.append("public final class ").append(simpleName).append(" implements ").append(GeneratedMetadata.class.getCanonicalName()).append(" {\n");
+        strb.append("    public String[] fieldNames() { return new String[]{").append(quoted(analysis.fieldNames)).append("}; }\n");
+        strb.append("    public int[] fieldLevels() { return new int[]{").append(join(analysis.fieldLevels)).append("}; }\n");
+        strb.append("    public String[] collectionNames() { return new String[]{").append(quoted(analysis.collectionNames)).append("}; }\n");
+        strb.append("    public int[] collectionLevels() { return new int[]{").append(join(analysis.collectionLevels)).append("}; }\n");
+        strb.append("    public Class<?>[] constructorParameterTypes() { return ").append(analysis.constructorParameters == null ?
+                "null" : "new Class<?>[]{"+join(analysis.constructorParameters)+"}").append("; }\n");
+        strb.append("    public Class<?>[] subclasses() { return new Class<?>[]{").append(join(analysis.subclasses)).append("}; }\n");
+        strb.append("}\n");
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(packageName.isEmpty() ? simpleName : packageName+"."+simpleName, type);
+        try (Writer writer = file.openWriter()) {
+            writer.write(strb.toString());
+        }
+    }
+
+
+    //==========HELPERS============================================================
+
+    private TypeMirror erasure(String canonicalName) {
+        return types.erasure(elements.getTypeElement(canonicalName).asType());
+    }
+
+    private boolean isMutableObject(TypeMirror type) {
+        return (type.getKind() == TypeKind.DECLARED || type.getKind() == TypeKind.TYPEVAR)
+                && types.isAssignable(types.erasure(type), mutableObject);
+    }
+
+    /**
+     * Returns true if the specified type is not a primitive, primitive wrapper, String, Enum or Void
+     */
+    private boolean isComplexObject(TypeMirror type) {
+        if (type.getKind().isPrimitive())
+            return false;
+        TypeMirror erased = types.erasure(type);
+        if (types.isSameType(erased, string) || types.isSameType(erased, voidType))
+            return false;
+        try {
+            types.unboxedType(erased);
+            return false;
+        } catch (IllegalArgumentException ignored) {}
+        Element element = types.asElement(erased);
+        return element == null || element.getKind() != ElementKind.ENUM;
+    }
+
+    private boolean isTransactionPackage(TypeElement type) {
+        return elements.getPackageOf(type).getQualifiedName().contentEquals(TRANSACTION_PACKAGE);
+    }
+
+    private TypeElement superclassOf(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED)
+            return null;
+        return (TypeElement) types.asElement(superclass);
+    }
+
+    private String classLiteral(TypeMirror type) {
+        return types.erasure(type).toString() + ".class";
+    }
+
+    private static AnnotationMirror findAnnotation(Element element, Class<?> annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation.getCanonicalName()))
+                return mirror;
+        }
+        return null;
+    }
+
+    private static String quoted(List<String> strings) {
+        StringBuilder strb = new StringBuilder();
+        for (String s : strings) {
+            if (strb.length() > 0) strb.append(", ");
+            strb.append("\"").append(s).append("\"");
+        }
+        return strb.toString();
+    }
+
+    private static String join(List<?> values) {
+        StringBuilder strb = new StringBuilder();
+        for (Object value : values) {
+            if (strb.length() > 0) strb.append(", ");
+            strb.append(value);
+        }
+        return strb.toString();
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2023 Daniel Maier.
+ * Licensed under the MIT License.
+ */
+
+package net.scoreworks.treetools.weaver;
+
+import net.scoreworks.treetools.ChangeTracking;
+import org.objectweb.asm.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * Build-time alternative to the EntityStateListener aspect. Rewrites compiled classes so that every write of a non static,
+ * non final, non transient field of a {@link net.scoreworks.treetools.MutableObject} directly calls
+ * {@link ChangeTracking#beforeWrite} before the field is set, the same fields the aspect's pointcut selects. Data models
+ * woven this way neither need the ajc compiler nor the AspectJ runtime.
+ * The class hierarchy is read from class files only, so no class of the data model is loaded or initialized. All
+ * supertypes of the woven classes must be found in the classes directory, on the given classpath or in the JDK, as
+ * classes left untracked by accident would silently miss changes. Requires ASM on the classpath the weaver is run with.
+ */
+public final class FieldWriteWeaver {
+    private static final String MUTABLE_OBJECT = "net/scoreworks/treetools/MutableObject";
+    private static final String HOOK_OWNER = Type.getInternalName(ChangeTracking.class);
+    private static final String HOOK_NAME = "beforeWrite";
+    private static final String HOOK_DESCRIPTOR = "(L" + MUTABLE_OBJECT + ";Ljava/lang/Object;Ljava/lang/Class;Ljava/lang/String;)V";
+    private static final int UNTRACKED = Modifier.STATIC | Modifier.FINAL | Modifier.TRANSIENT;
+
+    /** Directory with the classes to weave */
+    private final Path input;
+    /** Resolves classes that are referenced but not woven, e.g. TreeTools itself */
+    private final ClassLoader classpath;
+    /** Class files read so far by internal name. Null if a class can't be found */
+    private final Map<String, ClassFile> classFiles = new HashMap<>();
+
+    /**
+     * @param input directory with the compiled classes to weave
+     * @param classpath entries to look up further classes of the hierarchy
+     */
+    public FieldWriteWeaver(Path input, List<Path> classpath) {
+        this.input = input;
+        URL[] urls = new URL[classpath.size()];
+        for (int i = 0; i < urls.length; i++) {
+            try {
+                urls[i] = classpath.get(i).toUri().toURL();
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        //only used to read class files, the parent resolves those of the JDK without the application classpath
+        this.classpath = new URLClassLoader(urls, ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    /**
+     * Usage: {@code FieldWriteWeaver <classes directory> <output directory> [classpath]}. The output directory is
+     * replaced by a copy of the classes directory with all data model classes woven
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2)
+            throw new IllegalArgumentException("usage: FieldWriteWeaver <classes directory> <output directory> [classpath]");
+        List<Path> classpath = new ArrayList<>();
+        if (args.length > 2) {
+            for (String entry : args[2].split(File.pathSeparator)) {
+                if (!entry.isEmpty())
+                    classpath.add(Paths.get(entry));
+            }
+        }
+        FieldWriteWeaver weaver = new FieldWriteWeaver(Paths.get(args[0]), classpath);
+        int woven = weaver.weaveTo(Paths.get(args[1]));
+        System.out.println("woven field writes of " + woven + " classes");
+    }
+
+    /**
+     * Copy all files of the input directory to the output directory, weaving classes on the way. Files already in
+     * the output directory are deleted first, unless it is the input directory itself
+     * @return number of classes that were changed
+     */
+    public int weaveTo(Path output) throws IOException {
+        if (!Files.exists(output) || !Files.isSameFile(input, output))
+            deleteRecursively(output);
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(input)) {
+            files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        int woven = 0;
+        for (Path file : files) {
+            byte[] bytes = Files.readAllBytes(file);
+            if (file.getFileName().toString().endsWith(".class")) {
+                byte[] transformed = weave(bytes);
+                if (transformed != bytes) {
+                    bytes = transformed;
+                    woven++;
+                }
+            }
+            Path target = output.resolve(input.relativize(file).toString());
+            Files.createDirectories(target.getParent());
+            Files.write(target, bytes);
+        }
+        return woven;
+    }
+
+    /**
+     * @return the woven class file or the given array if the class writes no tracked field or was already woven
+     * @throws IllegalStateException if a supertype of a class whose field is written can't be found
+     */
+    public byte[] weave(byte[] classFile) {
+        ClassReader reader = new ClassReader(classFile);
+        boolean[] writesTrackedField = {false};
+        boolean[] woven = {false};
+        reader.accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+                        if (opcode == Opcodes.PUTFIELD && isTracked(owner, name))
+                            writesTrackedField[0] = true;
+                    }
+
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                        if (owner.equals(HOOK_OWNER) && name.equals(HOOK_NAME))
+                            woven[0] = true;
+                    }
+                };
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        if (!writesTrackedField[0] || woven[0])
+            return classFile;
+
+        //inserted code has no branches, so existing frames stay valid and only the stack size must be recomputed
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new FieldWriteVisitor(super.visitMethod(access, name, descriptor, signature, exceptions));
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Calls the hook with a copy of the target object and the new value in front of each tracked PUTFIELD
+     */
+    private final class FieldWriteVisitor extends MethodVisitor {
+        FieldWriteVisitor(MethodVisitor mv) {
+            super(Opcodes.ASM9, mv);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            if (opcode == Opcodes.PUTFIELD && isTracked(owner, name)) {
+                Type type = Type.getType(descriptor);
+                //..., object, value -> ..., object, value, object, value
+                if (type.getSize() == 2) {
+                    //there is no instruction to duplicate a category 2 value together with the reference below it
+                    super.visitInsn(Opcodes.DUP2_X1);
+                    super.visitInsn(Opcodes.POP2);
+                    super.visitInsn(Opcodes.DUP_X2);
+                    super.visitInsn(Opcodes.DUP_X2);
+                    super.visitInsn(Opcodes.POP);
+                    super.visitInsn(Opcodes.DUP2_X1);
+                }
+                else super.visitInsn(Opcodes.DUP2);
+                box(type);
+                super.visitLdcInsn(Type.getObjectType(owner));
+                super.visitLdcInsn(name);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, HOOK_OWNER, HOOK_NAME, HOOK_DESCRIPTOR, false);
+            }
+            super.visitFieldInsn(opcode, owner, name, descriptor);
+        }
+
+        private void box(Type type) {
+            Class<?> wrapper;
+            switch (type.getSort()) {
+                case Type.BOOLEAN: wrapper = Boolean.class; break;
+                case Type.CHAR: wrapper = Character.class; break;
+                case Type.BYTE: wrapper = Byte.class; break;
+                case Type.SHORT: wrapper = Short.class; break;
+                case Type.INT: wrapper = Integer.class; break;
+                case Type.FLOAT: wrapper = Float.class; break;
+                case Type.LONG: wrapper = Long.class; break;
+                case Type.DOUBLE: wrapper = Double.class; break;
+                default: return;
+            }
+            String internalName = Type.getInternalName(wrapper);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, internalName, "valueOf",
+                    Type.getMethodDescriptor(Type.getObjectType(internalName), type), false);
+        }
+    }
+
+
+    //==========CLASS HIERARCHY==============================================
+
+    /**
+     * @return true if the field is written through a {@link net.scoreworks.treetools.MutableObject} and is neither
+     * static, final nor transient. The field is resolved like the JVM does, starting at the class it is accessed through
+     */
+    private boolean isTracked(String owner, String name) {
+        if (!isMutableObject(owner))
+            return false;
+        for (ClassFile cf = classFile(owner); cf != null; cf = classFile(cf.superName)) {
+            Integer access = cf.fields.get(name);
+            if (access != null)
+                return (access & UNTRACKED) == 0;
+        }
+        return false;
+    }
+
+    private boolean isMutableObject(String internalName) {
+        if (internalName.equals(MUTABLE_OBJECT))
+            return true;
+        //no class of the JDK implements MutableObject
+        if (internalName.startsWith("java/"))
+            return false;
+        ClassFile cf = classFile(internalName);
+        if (cf == null)
+            throw new IllegalStateException("class file of " + internalName.replace('/', '.') + " not found. It must be " +
+                    "on the classpath of the weaver to decide if writes of fields of its subclasses are tracked");
+        if (cf.mutableObject == null) {
+            boolean mutableObject = cf.superName != null && isMutableObject(cf.superName);
+            for (int i = 0; !mutableObject && i < cf.interfaces.length; i++)
+                mutableObject = isMutableObject(cf.interfaces[i]);
+            cf.mutableObject = mutableObject;
+        }
+        return cf.mutableObject;
+    }
+
+    private ClassFile classFile(String internalName) {
+        if (internalName == null || internalName.startsWith("java/"))
+            return null;
+        if (classFiles.containsKey(internalName))
+            return classFiles.get(internalName);
+        ClassFile cf = null;
+        try {
+            Path file = input.resolve(internalName + ".class");
+            if (Files.exists(file))
+                cf = new ClassFile(Files.readAllBytes(file));
+            else {
+                try (InputStream in = classpath.getResourceAsStream(internalName + ".class")) {
+                    if (in != null)
+                        cf = new ClassFile(readAll(in));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        classFiles.put(internalName, cf);
+        return cf;
+    }
+
+    /**
+     * Supertypes and fields of a class file
+     */
+    private static final class ClassFile {
+        final String superName;
+        final String[] interfaces;
+        /** Access flags by field name */
+        final Map<String, Integer> fields = new HashMap<>();
+        /** Whether the class implements MutableObject, null until first asked */
+        Boolean mutableObject;
+
+        ClassFile(byte[] bytes) {
+            ClassReader reader = new ClassReader(bytes);
+            superName = reader.getSuperName();
+            interfaces = reader.getInterfaces();
+            reader.accept(new ClassVisitor(Opcodes.ASM9) {
+                @Override
+                public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+                    fields.put(name, access);
+                    return null;
+                }
+            }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int length = 0;
+        for (int n; (n = in.read(buffer, length, buffer.length - length)) > 0; ) {
+            length += n;
+            if (length == buffer.length)
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path))
+            return;
+        try (Stream<Path> stream = Files.walk(path)) {
+            for (Path p : stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(p);
+        }
+    }
+}
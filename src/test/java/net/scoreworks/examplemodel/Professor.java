@@ -1,5 +1,7 @@
 package net.scoreworks.examplemodel;
 
+import net.scoreworks.treetools.annotations.TransactionalConstructor;
+
 public class Professor extends Member {
     public Department department;
 
@@ -7,4 +9,10 @@ public class Professor extends Member {
         super(owner, key, name, info);    // Call Member constructor that adds Student to its Owner
         this.department = department;
     }
+
+    // Subclasses don't inherit the transactional constructor of Member, so each one needs its own
+    @TransactionalConstructor
+    private Professor(University owner, Integer key) {
+        super(owner, key);
+    }
 }
@@ -1,5 +1,7 @@
 package net.scoreworks.examplemodel;
 
+import net.scoreworks.treetools.annotations.TransactionalConstructor;
+
 public class Student extends Member {
     // This field does not exist as far as the transactional system is concerned
     public transient Course course;
@@ -9,6 +11,12 @@ public class Student extends Member {
         this.course = course;
     }
 
+    // Subclasses don't inherit the transactional constructor of Member, so each one needs its own
+    @TransactionalConstructor
+    private Student(University owner, Integer key) {
+        super(owner, key);
+    }
+
     @Override
     protected void addToOwner() {
         course.students.put(getKey(), this);
@@ -0,0 +1,49 @@
+package net.scoreworks.testmodel;
+
+import net.scoreworks.treetools.Child;
+import net.scoreworks.treetools.annotations.PolymorphOwner;
+import net.scoreworks.treetools.annotations.TransactionalConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@PolymorphOwner(commonInterface = Commentable.class)
+public class Comment extends Child<Commentable> implements Commentable {
+    List<Comment> replies = new ArrayList<>();
+    String text;
+
+    @TransactionalConstructor
+    private Comment(Commentable owner) {
+        super(owner);
+    }
+
+    public Comment(Commentable owner, String text) {
+        super(owner);
+        this.text = text;
+    }
+
+    protected void removeFromOwner() {
+        getOwner().removeComment(this);
+    }
+    protected void addToOwner() {
+        getOwner().addComment(this);
+    }
+
+    public Comment getReply(int idx) {
+        return replies.get(idx);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public void addComment(Comment comment) {
+        replies.add(comment);
+    }
+
+    @Override
+    public void removeComment(Comment comment) {
+        replies.remove(comment);
+    }
+}
@@ -0,0 +1,11 @@
+package net.scoreworks.testmodel;
+
+import net.scoreworks.treetools.MutableObject;
+
+/**
+ * Anything comments can be written about, including comments themselves. Replies form ownership chains of any depth
+ */
+public interface Commentable extends MutableObject {
+    void addComment(Comment comment);
+    void removeComment(Comment comment);
+}
@@ -0,0 +1,29 @@
+package net.scoreworks.testmodel;
+
+
+import net.scoreworks.treetools.RootEntity;
+import net.scoreworks.treetools.annotations.TransactionalConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Discussion extends RootEntity implements Commentable {
+    List<Comment> comments = new ArrayList<>();
+
+    @TransactionalConstructor
+    public Discussion() {}
+
+    public Comment getComment(int idx) {
+        return comments.get(idx);
+    }
+
+    @Override
+    public void addComment(Comment comment) {
+        comments.add(comment);
+    }
+
+    @Override
+    public void removeComment(Comment comment) {
+        comments.remove(comment);
+    }
+}
@@ -0,0 +1,268 @@
+package net.scoreworks.treetools;
+
+
+import net.scoreworks.examplemodel.*;
+import net.scoreworks.testmodel.*;
+import net.scoreworks.treetools.annotations.AbstractClass;
+import net.scoreworks.treetools.processor.MetadataProcessor;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.tools.*;
+import java.io.File;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ClassMetadataTests {
+
+    @Test
+    public void testPreloadMatchesLazyAnalysis() {
+        ClassMetadata.clearCache();
+        ClassMetadata.preload(University.class);
+        ClassMetadata.preload(FullScore.class);
+
+        University university = new University();
+        Department department = new Department(university, "Mathematics");
+        Course course = new Course(department, "Algebra", SemesterType.WINTER_SEMESTER);
+        //held in an array, in a map and by a polymorphic owner
+        LectureEvent event = new LectureEvent(course, 2);
+        Professor professor = new Professor(university, 1, "Noether", null, department);
+        ContactInfo info = new ContactInfo(professor, "noether@example.com", 1882);
+
+        FullScore fullScore = new FullScore();
+        Track track = new Track(fullScore);
+        Staff staff = new Staff(track, true);
+        Voice voice = new Voice(track, 0);
+        Beam beam = new Beam(voice, 0L, 8L);
+        NoteTimeTick ntt = new NoteTimeTick(track, Fraction.ZERO);
+        NoteGroup noteGroup = new NoteGroup(ntt, staff, voice, 8, true);
+        Note note = new Note(noteGroup, 69, false, NoteName.A);
+        Tuplet tuplet = new Tuplet(new NoteTimeTick(track, Fraction.ONE), staff, voice, 8);
+
+        List<MutableObject> objects = Arrays.asList(university, department, course, event, professor, info,
+                fullScore, track, staff, voice, beam, ntt, noteGroup, note, tuplet);
+        //the lazy analysis derives the constructor from the owner and key of an instance
+        for (MutableObject mo : objects)
+            assertSameAnalysis(ClassMetadata.getMetadata(mo.getClass()), new ClassMetadata(mo.getClass(), mo.constructorParameterTypes()));
+        //can't be created outside a course, so its types are given the way a MappedChild derives them
+        assertSameAnalysis(ClassMetadata.getMetadata(Student.class), new ClassMetadata(Student.class, University.class, Integer.class));
+    }
+
+    @Test
+    public void testGeneratedMetadataMatchesReflectiveAnalysis() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assertions.assertNotNull(compiler);
+        Path output = Files.createTempDirectory("treetools-processor");
+        Path sources = Paths.get("src/test/java/net/scoreworks");
+        List<String> classNames = new ArrayList<>();
+        List<JavaFileObject> units = new ArrayList<>();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+            for (String model : Arrays.asList("testmodel", "examplemodel", "collection")) {
+                try (Stream<Path> files = Files.list(sources.resolve(model))) {
+                    for (Path file : files.collect(Collectors.toList())) {
+                        fileManager.getJavaFileObjects(file.toFile()).forEach(units::add);
+                        classNames.add("net.scoreworks." + model + "." + file.getFileName().toString().replace(".java", ""));
+                    }
+                }
+            }
+            //metadata of nested classes is looked up with '$' escaped, so it can't collide with a top-level Library_Shelf
+            units.add(new SourceUnit("net.scoreworks.library.Library",
+                    "package net.scoreworks.library;\n" +
+                    "import net.scoreworks.treetools.*;\n" +
+                    "import net.scoreworks.treetools.annotations.TransactionalConstructor;\n" +
+                    "public class Library extends RootEntity {\n" +
+                    "    java.util.Set<Shelf> shelves = new java.util.HashSet<>();\n" +
+                    "    public static class Shelf extends Child<Library> {\n" +
+                    "        int books;\n" +
+                    "        String label;\n" +
+                    "        @TransactionalConstructor\n" +
+                    "        Shelf(Library owner) { super(owner); }\n" +
+                    "        protected void addToOwner() { getOwner().shelves.add(this); }\n" +
+                    "        protected void removeFromOwner() { getOwner().shelves.remove(this); }\n" +
+                    "    }\n" +
+                    "}\n"));
+            classNames.add("net.scoreworks.library.Library$Shelf");
+            units.add(new SourceUnit("net.scoreworks.library.Library_Shelf",
+                    "package net.scoreworks.library;\n" +
+                    "import net.scoreworks.treetools.*;\n" +
+                    "import net.scoreworks.treetools.annotations.TransactionalConstructor;\n" +
+                    "public class Library_Shelf extends Child<Library> {\n" +
+                    "    long height;\n" +
+                    "    @TransactionalConstructor\n" +
+                    "    Library_Shelf(Library owner) { super(owner); }\n" +
+                    "    protected void addToOwner() {}\n" +
+                    "    protected void removeFromOwner() {}\n" +
+                    "}\n"));
+            classNames.add("net.scoreworks.library.Library_Shelf");
+
+            String classpath = System.getProperty("java.class.path") + File.pathSeparator + locationOf(MutableObject.class)
+                    + File.pathSeparator + locationOf(NotNull.class);
+            List<String> options = Arrays.asList("-d", output.toString(), "-s", output.toString(), "-classpath", classpath,
+                    "-processorpath", classpath, "-processor", MetadataProcessor.class.getName(), "-nowarn");
+            Assertions.assertTrue(compiler.getTask(null, fileManager, null, options, null, units).call());
+        }
+
+        int compared = 0;
+        try (URLClassLoader loader = new ModelClassLoader(output.toUri().toURL(), getClass().getClassLoader())) {
+            for (String className : classNames) {
+                Class<?> clazz = loader.loadClass(className);
+                if (!MutableObject.class.isAssignableFrom(clazz))
+                    continue;
+                @SuppressWarnings("unchecked")
+                Class<? extends MutableObject> modelClass = (Class<? extends MutableObject>) clazz;
+                GeneratedMetadata generated = ClassMetadata.loadGeneratedMetadata(modelClass);
+                if (generated == null)
+                    continue;
+                if (Modifier.isAbstract(clazz.getModifiers())) {
+                    Assertions.assertEquals(Arrays.asList(clazz.getAnnotation(AbstractClass.class).subclasses()), Arrays.asList(generated.subclasses()));
+                    continue;
+                }
+                //nothing is derived for a marked constructor, so no instance is needed for the constructor parameters
+                Assertions.assertNotNull(generated.constructorParameterTypes());
+                assertSameAnalysis(new ClassMetadata(modelClass, (GeneratedMetadata) null), new ClassMetadata(modelClass, generated));
+                compared++;
+            }
+            Assertions.assertNotNull(ClassMetadata.loadGeneratedMetadata(loader.loadClass("net.scoreworks.library.Library$Shelf")));
+        }
+        Assertions.assertTrue(compared >= 10);
+    }
+
+    @Test
+    public void testStaleSchemaIsRejected() throws Exception {
+        String source =
+                "package net.scoreworks.schema;\n" +
+                "import net.scoreworks.treetools.*;\n" +
+                "import net.scoreworks.treetools.annotations.*;\n" +
+                "public class Library extends RootEntity {\n" +
+                "    java.util.Set<Item> items = new java.util.HashSet<>();\n" +
+                "}\n" +
+                "@AbstractClass(subclasses = {Book.class, Magazine.class})\n" +
+                "abstract class Item extends Child<Library> {\n" +
+                "    Item(Library owner) { super(owner); }\n" +
+                "    protected void addToOwner() { getOwner().items.add(this); }\n" +
+                "    protected void removeFromOwner() { getOwner().items.remove(this); }\n" +
+                "}\n" +
+                "class Book extends Item {\n" +
+                "    int pages;\n" +
+                "    @TransactionalConstructor\n" +
+                "    Book(Library owner) { super(owner); }\n" +
+                "    Book(Library owner, int pages) { super(owner); this.pages = pages; }\n" +
+                "}\n" +
+                "class Magazine extends Item {\n" +
+                "    @TransactionalConstructor\n" +
+                "    Magazine(Library owner) { super(owner); }\n" +
+                "}\n";
+        //each change leaves the fields as they are, but changes the analysis of the given class
+        Map<String, String> changes = new LinkedHashMap<>();
+        changes.put("net.scoreworks.schema.Book", source.replace(
+                "    @TransactionalConstructor\n    Book(Library owner) { super(owner); }\n    Book(Library owner, int pages)",
+                "    Book(Library owner) { super(owner); }\n    @TransactionalConstructor\n    Book(Library owner, int pages)"));
+        changes.put("net.scoreworks.schema.Magazine", source.replace("Magazine(Library owner)", "Magazine(RootEntity owner)")
+                .replace("Item(Library owner)", "Item(RootEntity owner) { super((Library) owner); }\n    Item(Library owner)"));
+        changes.put("net.scoreworks.schema.Item", source.replace("{Book.class, Magazine.class}", "{Book.class}"));
+        changes.put("net.scoreworks.schema.Library", source.replace("public class Library",
+                "@PolymorphOwner(commonInterface = RootEntity.class)\npublic class Library"));
+
+        File file = Files.createTempFile("treetools", ".schema").toFile();
+        List<URLClassLoader> loaders = new ArrayList<>();
+        try {
+            URLClassLoader saved = new URLClassLoader(new URL[]{compile(source).toUri().toURL()}, getClass().getClassLoader());
+            loaders.add(saved);
+            @SuppressWarnings("unchecked")
+            Class<? extends RootEntity> library = (Class<? extends RootEntity>) saved.loadClass("net.scoreworks.schema.Library");
+            ClassMetadata.clearCache();
+            ClassMetadata.preload(library);
+            ClassMetadata.saveSchema(file);
+            ClassMetadata.clearCache();
+            ClassMetadata.loadSchema(file);
+
+            for (String className : changes.keySet())
+                Assertions.assertNotNull(ClassMetadata.loadGeneratedMetadata(saved.loadClass(className)), className);
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                URLClassLoader changed = new URLClassLoader(new URL[]{compile(change.getValue()).toUri().toURL()}, getClass().getClassLoader());
+                loaders.add(changed);
+                Assertions.assertNull(ClassMetadata.loadGeneratedMetadata(changed.loadClass(change.getKey())), change.getKey());
+            }
+        } finally {
+            ClassMetadata.clearCache();
+            for (URLClassLoader loader : loaders)
+                loader.close();
+            Files.delete(file.toPath());
+        }
+    }
+
+    static void assertSameAnalysis(ClassMetadata expected, ClassMetadata actual) {
+        Assertions.assertNotNull(expected);
+        Assertions.assertEquals(Arrays.asList(expected.fields), Arrays.asList(actual.fields));
+        Assertions.assertEquals(Arrays.asList(expected.collections), Arrays.asList(actual.collections));
+        Assertions.assertEquals(Arrays.asList(expected.containerTypes), Arrays.asList(actual.containerTypes));
+        Assertions.assertEquals(expected.constructor, actual.constructor);
+    }
+
+    /**
+     * Compile a single source file without annotation processing
+     * @return directory of the compiled classes
+     */
+    private static Path compile(String source) throws Exception {
+        Path output = Files.createTempDirectory("treetools-model");
+        String classpath = System.getProperty("java.class.path") + File.pathSeparator + locationOf(MutableObject.class);
+        List<String> options = Arrays.asList("-d", output.toString(), "-classpath", classpath, "-proc:none", "-nowarn");
+        JavaFileObject unit = new SourceUnit(source.substring(8, source.indexOf(';')) + ".Library", source);
+        Assertions.assertTrue(ToolProvider.getSystemJavaCompiler().getTask(null, null, null, options, null, Collections.singletonList(unit)).call());
+        return output;
+    }
+
+    private static String locationOf(Class<?> clazz) throws Exception {
+        return Paths.get(clazz.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+    }
+
+    private static class SourceUnit extends SimpleJavaFileObject {
+        private final String code;
+
+        SourceUnit(String className, String code) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    /**
+     * Loads the freshly compiled model classes itself instead of asking its parent, which knows the test models
+     * without generated metadata
+     */
+    private static class ModelClassLoader extends URLClassLoader {
+        ModelClassLoader(URL classes, ClassLoader parent) {
+            super(new URL[]{classes}, parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.startsWith("net.scoreworks.treetools.") || name.startsWith("java"))
+                return super.loadClass(name, resolve);
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> clazz = findLoadedClass(name);
+                if (clazz == null) {
+                    try {
+                        clazz = findClass(name);
+                    } catch (ClassNotFoundException e) {
+                        return super.loadClass(name, resolve);
+                    }
+                }
+                return clazz;
+            }
+        }
+    }
+}
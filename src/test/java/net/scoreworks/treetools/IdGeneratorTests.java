@@ -0,0 +1,79 @@
+package net.scoreworks.treetools;
+
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+public class IdGeneratorTests {
+    static final int THREADS = 8;
+    static final int BLOCK_SIZE = 1024;
+
+    @Test
+    public void testConcurrentIdsAreUnique() throws Exception {
+        IdGenerator ids = new IdGenerator(BLOCK_SIZE);
+        //several blocks per thread, so threads take blocks from the counter while the others do the same
+        int idsPerThread = 5 * BLOCK_SIZE + 17;
+        Set<Long> drawn = ConcurrentHashMap.newKeySet();
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        runInThreads(() -> {
+            start.await();
+            for (int i=0; i<idsPerThread; i++)
+                drawn.add(ids.next());
+            return null;
+        });
+        Assertions.assertEquals(THREADS * idsPerThread, drawn.size());
+    }
+
+    @Test
+    public void testResetDropsBlocksOfTheOldGenerator() throws Exception {
+        int idsPerThread = 3 * BLOCK_SIZE;
+        Set<Long> drawn = ConcurrentHashMap.newKeySet();
+        CyclicBarrier phase = new CyclicBarrier(THREADS + 1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t=0; t<THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    //each thread holds a partly used block of the old generator while it is reset
+                    for (int i=0; i<100; i++)
+                        new ObjectId();
+                    phase.await();
+                    phase.await();
+                    for (int i=0; i<idsPerThread; i++)
+                        drawn.add(new ObjectId().longValue());
+                    return null;
+                }));
+            }
+            phase.await();
+            ObjectId.reset();
+            phase.await();
+            for (Future<?> future : futures)
+                future.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+            ObjectId.reset();
+        }
+        //a thread continuing its old block would hand out ids that new blocks start over with
+        Assertions.assertEquals(THREADS * idsPerThread, drawn.size());
+        for (long id : drawn)
+            Assertions.assertTrue(id < (long) THREADS * idsPerThread);
+    }
+
+    private static void runInThreads(Callable<Void> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t=0; t<THREADS; t++)
+                futures.add(executor.submit(task));
+            for (Future<Void> future : futures)
+                future.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
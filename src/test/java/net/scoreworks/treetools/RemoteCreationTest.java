@@ -73,4 +73,29 @@ public class RemoteCreationTest {
         Assertions.assertSame(lok_tieEnd.getFields().  get(note.getClass().getDeclaredField("previousTied")), lok_tieStart);
         Assertions.assertSame(lok_tieEnd.getFields().  get(note.getClass().getDeclaredField("nextTied")), null);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testEqualImmutableValuesAreInterned() {
+        TransactionManager.getInstance().enableValueInterning(100);
+        try {
+            NoteTimeTick ntt = new NoteTimeTick(track, Fraction.getFraction(24, 1));
+            NoteTimeTick nttInOtherTrack = new NoteTimeTick(new Track(fullScore), Fraction.getFraction(24, 1));
+            Assertions.assertNotSame(ntt.getKey(), nttInOtherTrack.getKey());
+
+            Remote.ObjectState lok = remote.createObjectState(ntt);
+            Remote.ObjectState lokInOtherTrack = remote.createObjectState(nttInOtherTrack);
+            Assertions.assertSame(lok.getConstructionParams()[1], lokInOtherTrack.getConstructionParams()[1]);
+        } finally {
+            TransactionManager.getInstance().shutdown();
+        }
+    }
+
+    @Test
+    public void testValueInterningEndsWithShutdown() {
+        TransactionManager.getInstance().enableValueInterning(100);
+        TransactionManager.getInstance().shutdown();
+        Fraction fraction = Fraction.getFraction(24, 1);
+        Assertions.assertSame(fraction, ValueInterner.intern(fraction));
+        Assertions.assertNotSame(ValueInterner.intern(Fraction.getFraction(24, 1)), ValueInterner.intern(Fraction.getFraction(24, 1)));
+    }
+}
@@ -0,0 +1,175 @@
+package net.scoreworks.treetools;
+
+
+import net.scoreworks.testmodel.Comment;
+import net.scoreworks.testmodel.Discussion;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RemoteTableTests {
+    static final int CAPACITY = 64;
+
+    Discussion discussion;
+    Remote remote;
+    /** What the remote is expected to link, state to object */
+    Map<Remote.ObjectState, MutableObject> linked;
+    List<Remote.ObjectState> unlinked;
+
+    @BeforeEach
+    public void createEmptyRemote() {
+        discussion = new Discussion();
+        remote = new Remote(discussion, true);
+        remote.removeValue(discussion);
+        linked = new IdentityHashMap<>();
+        unlinked = new ArrayList<>();
+        Assertions.assertEquals(CAPACITY, remote.capacity());
+        assertConsistent();
+    }
+
+    @Test
+    public void testRemovalWithinAClusterAcrossTheWrap() {
+        //a, b, c and d probe from the last slot, e from the first, so the cluster wraps around the end of the table
+        long[] last = idsWithHome(CAPACITY-1, 4);
+        Remote.ObjectState a = link(last[0]), b = link(last[1]), c = link(last[2]);
+        Remote.ObjectState e = link(idsWithHome(0, 1)[0]);
+        Remote.ObjectState d = link(last[3]);
+        assertSlots(new int[]{CAPACITY-1, 0, 1, 2, 3}, a, b, c, e, d);
+
+        //removing from the middle moves every following entry back, including the one that is at its home slot
+        unlink(b);
+        assertSlots(new int[]{CAPACITY-1, 0, 1, 2}, a, c, e, d);
+        //the end of the cluster leaves nothing to move
+        unlink(d);
+        assertSlots(new int[]{CAPACITY-1, 0, 1}, a, c, e);
+        //removing the start moves the rest back over the wrap
+        unlink(a);
+        assertSlots(new int[]{CAPACITY-1, 0}, c, e);
+        unlink(c);
+        assertSlots(new int[]{0}, e);
+        unlink(e);
+    }
+
+    @Test
+    public void testRemovalLeavesEntriesAtTheirHomeSlot() {
+        //a and b probe from slot 10, c from slot 11 but is pushed to 12. Removing a may move b, but c stays behind it
+        long[] ten = idsWithHome(10, 2);
+        Remote.ObjectState a = link(ten[0]), b = link(ten[1]), c = link(idsWithHome(11, 1)[0]);
+        assertSlots(new int[]{10, 11, 12}, a, b, c);
+        unlink(a);
+        assertSlots(new int[]{10, 11}, b, c);
+        //an entry at its home slot must not move into a gap before it
+        Remote.ObjectState f = link(idsWithHome(13, 1)[0]);
+        unlink(b);
+        assertSlots(new int[]{11, 13}, c, f);
+    }
+
+    @Test
+    public void testGrowthPastHalfLoad() {
+        //every id probes from the same slot, so the table holds a single cluster until it grows
+        long[] ids = idsWithHome(5, CAPACITY/2 + 1);
+        List<Remote.ObjectState> states = new ArrayList<>();
+        for (int i=0; i<CAPACITY/2; i++)
+            states.add(link(ids[i]));
+        Assertions.assertEquals(CAPACITY, remote.capacity());
+        states.add(link(ids[CAPACITY/2]));
+        Assertions.assertEquals(2*CAPACITY, remote.capacity());
+
+        //removal in the grown table still finds the entries that were rehashed
+        for (int i=0; i<states.size(); i+=3)
+            unlink(states.get(i));
+    }
+
+    @Test
+    public void testPutForPresentId() {
+        long id = idsWithHome(20, 1)[0];
+        Comment first = new Comment(discussion, "first");
+        Comment second = new Comment(discussion, "second");
+        Remote.ObjectState state = remote.detachedState(first, new ObjectId(id));
+        remote.put(state, first);
+        linked.put(state, first);
+        assertConsistent();
+
+        //a new state of the same object replaces the old one in place
+        Remote.ObjectState update = remote.detachedState(first, new ObjectId(id));
+        remote.put(update, first);
+        Assertions.assertEquals(1, remote.size());
+        Assertions.assertSame(update, remote.getKey(first));
+        Assertions.assertSame(first, remote.get(state));
+        linked.remove(state);
+        linked.put(update, first);
+        assertConsistent();
+
+        //linking the id with another object drops the link of the first object
+        Remote.ObjectState other = remote.detachedState(second, new ObjectId(id));
+        remote.put(other, second);
+        linked.remove(update);
+        linked.put(other, second);
+        Assertions.assertNull(remote.getKey(first));
+        Assertions.assertFalse(remote.containsValue(first));
+        assertConsistent();
+
+        //linking the object with another id drops the slot of its old id
+        Remote.ObjectState moved = remote.detachedState(second, new ObjectId(idsWithHome(20, 2)[1]));
+        remote.put(moved, second);
+        linked.remove(other);
+        unlinked.add(other);
+        linked.put(moved, second);
+        assertConsistent();
+    }
+
+    private Remote.ObjectState link(long id) {
+        Comment comment = new Comment(discussion, Long.toString(id));
+        Remote.ObjectState state = remote.detachedState(comment, new ObjectId(id));
+        remote.put(state, comment);
+        linked.put(state, comment);
+        assertConsistent();
+        return state;
+    }
+
+    private void unlink(Remote.ObjectState state) {
+        Assertions.assertSame(linked.remove(state), remote.remove(state));
+        unlinked.add(state);
+        assertConsistent();
+    }
+
+    /**
+     * Both directions of the remote hold exactly the expected links
+     */
+    private void assertConsistent() {
+        Assertions.assertEquals(linked.size(), remote.size());
+        for (Map.Entry<Remote.ObjectState, MutableObject> entry : linked.entrySet()) {
+            Assertions.assertTrue(remote.containsKey(entry.getKey()));
+            Assertions.assertSame(entry.getValue(), remote.get(entry.getKey()));
+            Assertions.assertSame(entry.getKey(), remote.getKey(entry.getValue()));
+        }
+        for (Remote.ObjectState state : unlinked) {
+            Assertions.assertFalse(remote.containsKey(state));
+            Assertions.assertNull(remote.get(state));
+        }
+    }
+
+    private void assertSlots(int[] slots, Remote.ObjectState... states) {
+        Assertions.assertEquals(slots.length, remote.size());
+        for (int i=0; i<states.length; i++)
+            Assertions.assertEquals(slots[i], remote.find(states[i].objectId.id));
+    }
+
+    /**
+     * @return ids far beyond the generated ones that probe from the given slot of a table of initial capacity
+     */
+    private static long[] idsWithHome(int slot, int count) {
+        long[] ids = new long[count];
+        int n = 0;
+        for (long id = 1L << 40; n < count; id++) {
+            if (Remote.homeSlot(id, CAPACITY) == slot)
+                ids[n++] = id;
+        }
+        return ids;
+    }
+}
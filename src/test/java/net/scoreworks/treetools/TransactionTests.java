@@ -8,6 +8,9 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.reflect.Field;
+import java.util.Map;
+
 public class TransactionTests {
     TransactionManager tm = TransactionManager.getInstance();
     Repository repository;
@@ -20,7 +23,7 @@ public class TransactionTests {
     @BeforeEach
     public void prepareFullScores() {
         tm.setVerbose(true);
-        createFullScoreWithTransactionsEnabled();
+        createFullScoreWithTransactionsEnabled(false);
         read = (FullScore) tm.clone(fullScore);
     }
     @AfterEach
@@ -28,7 +31,7 @@ public class TransactionTests {
         tm.shutdown();
     }
 
-    private void createFullScoreWithTransactionsEnabled() {
+    private void createFullScoreWithTransactionsEnabled(boolean lazyRemote) {
         fullScore = new FullScore();
         fullScore.name = "unique field value";
         track = new Track(fullScore);
@@ -48,7 +51,7 @@ public class TransactionTests {
         tieEnd = new Note(noteGroup, 69, false, NoteName.B);
         tieStart.tieWith(tieEnd);
 
-        tm.enableTransactionsForRootEntity(fullScore);
+        tm.enableTransactionsForRootEntity(fullScore, lazyRemote);
         repository = tm.repositories.get(fullScore);
     }
 
@@ -109,6 +112,62 @@ public class TransactionTests {
         Assertions.assertSame(note.getAccidental(), true);
     }
 
+    @Test
+    public void testSuccessiveStatesShareUnchangedFields() throws NoSuchFieldException {
+        Remote.ObjectState before = repository.remote.getKey(note);
+        note.setPitch(30);
+        fullScore.commit();
+        Remote.ObjectState after = repository.remote.getKey(note);
+        Assertions.assertNotSame(before, after);
+        Assertions.assertEquals(30, after.getFields().get(Note.class.getDeclaredField("pitch")));
+        Assertions.assertNotEquals(30, before.getFields().get(Note.class.getDeclaredField("pitch")));
+        //only primitives were written, the references of both states are the same chunk
+        Assertions.assertSame(before.references[0], after.references[0]);
+
+        read.pull();
+        Assertions.assertEquals(30, getNoteInFullScoreAt(read, Fraction.ZERO).getPitch());
+    }
+
+    @Test
+    public void testCommitOnlyReadsWrittenFields() throws ReflectiveOperationException {
+        note.setPitch(30);
+        Assertions.assertEquals(1, repository.getWrittenFields(note).cardinality());
+        //reflection bypasses the change tracking, so this write is not part of the commit
+        Field accidental = Note.class.getDeclaredField("accidental");
+        accidental.setAccessible(true);
+        accidental.setBoolean(note, true);
+        fullScore.commit();
+
+        Remote.ObjectState state = repository.remote.getKey(note);
+        Assertions.assertEquals(30, state.getFields().get(Note.class.getDeclaredField("pitch")));
+        Assertions.assertEquals(false, state.getFields().get(accidental));
+        read.pull();
+        Note pulled = getNoteInFullScoreAt(read, Fraction.ZERO);
+        Assertions.assertEquals(30, pulled.getPitch());
+        Assertions.assertFalse(pulled.getAccidental());
+    }
+
+    @Test
+    public void testNoOpWritesAreSkipped() {
+        tm.enableNoOpWriteSkipping();
+        note.setPitch(69);
+        Assertions.assertFalse(repository.locallyChangedContains(note));
+        //a reverted write drops out of the change set
+        note.setPitch(30);
+        Assertions.assertTrue(repository.locallyChangedContains(note));
+        note.setPitch(69);
+        Assertions.assertFalse(repository.locallyChangedContains(note));
+        Assertions.assertNull(fullScore.commit());
+
+        note.setPitch(30);
+        note.setAccidental(true);
+        note.setPitch(69);
+        Commit commit = fullScore.commit();
+        Assertions.assertEquals(1, commit.getChangeRecords().size());
+        read.pull();
+        Assertions.assertTrue(getNoteInFullScoreAt(read, Fraction.ZERO).getAccidental());
+    }
+
     @Test
     public void testPullingAChangeAndSubsequentCreation() {
         NoteGroup ng = note.getOwner();
@@ -325,6 +384,217 @@ public class TransactionTests {
         Assertions.assertEquals(3, commit.getDeletionRecords().size());
     }
 
+    @Test
+    public void testLazyRemoteCreatesStatesOnDemand() throws NoSuchFieldException {
+        tm.shutdown();
+        createFullScoreWithTransactionsEnabled(true);
+        Assertions.assertNull(repository.remote.getKey(tieStart));
+
+        tieStart.setPitch(30);
+        note.getOwner().remove();
+        //the state was captured before the change
+        Remote.ObjectState tieStartBeforeChange = repository.remote.getKey(tieStart);
+        Assertions.assertEquals(69, tieStartBeforeChange.getFields().get(Note.class.getDeclaredField("pitch")));
+
+        Commit commit = fullScore.commit();
+        Assertions.assertTrue(commit.getChangeRecords().containsKey(tieStartBeforeChange));
+        Assertions.assertEquals(2, commit.getDeletionRecords().size());
+        Assertions.assertTrue(repository.remote.size() < 13);
+
+        //cloning completes the remote
+        read = (FullScore) tm.clone(fullScore);
+        Assertions.assertEquals(30, getNoteInFullScoreAt(read, Fraction.getFraction(8, 1)).getPitch());
+        verifyTying(read);
+    }
+
+    @Test
+    public void testParallelRemoteBuilding() throws NoSuchFieldException {
+        tm.shutdown();
+        tm.enableParallelRemoteBuilding();
+        createFullScoreWithTransactionsEnabled(false);
+        Assertions.assertEquals(13, repository.remote.size());
+        verifyTying(repository.remote);
+
+        read = (FullScore) tm.clone(fullScore);
+        tieStart.setPitch(30);
+        fullScore.commit();
+        read.pull();
+        Assertions.assertEquals(30, getNoteInFullScoreAt(read, Fraction.getFraction(8, 1)).getPitch());
+        verifyTying(read);
+    }
+
+    @Test
+    public void testCloningDeepOwnershipChain() {
+        tm.shutdown();
+        //far deeper than the default stack could handle if the ownership tree was walked recursively
+        int depth = 100_000;
+        Discussion discussion = new Discussion();
+        Commentable owner = discussion;
+        for (int i=0; i<depth; i++)
+            owner = new Comment(owner, "reply " + i);
+        tm.enableTransactionsForRootEntity(discussion);
+
+        Discussion clone = (Discussion) tm.clone(discussion);
+        Comment comment = clone.getComment(0);
+        for (int i=1; i<depth; i++)
+            comment = comment.getReply(0);
+        Assertions.assertEquals("reply " + (depth-1), comment.getText());
+    }
+
+    @Test
+    public void testPullAppliesRecordsInCommitOrder() {
+        tm.shutdown();
+        //comments are appended to a list when created, so the order they are pulled in is visible. Enough of them to
+        //give the states of later ones ids that don't follow each other in a hash table
+        int comments = 200;
+        Discussion discussion = new Discussion();
+        for (int i=0; i<comments/2; i++)
+            new Comment(discussion, "comment " + i);
+        tm.enableTransactionsForRootEntity(discussion);
+        Discussion clone = (Discussion) tm.clone(discussion);
+
+        for (int i=comments/2; i<comments; i++)
+            new Comment(discussion, "comment " + i);
+        discussion.commit();
+        clone.pull();
+        for (int i=0; i<comments; i++)
+            Assertions.assertEquals("comment " + i, clone.getComment(i).getText());
+
+        //replies, created in the opposite order of their owners
+        for (int i=comments-1; i>=0; i--)
+            new Comment(discussion.getComment(i), "reply " + i);
+        discussion.commit();
+        clone.pull();
+        Discussion secondClone = (Discussion) tm.clone(discussion);
+        for (int i=0; i<comments; i++) {
+            Assertions.assertEquals("reply " + i, clone.getComment(i).getReply(0).getText());
+            Assertions.assertEquals("comment " + i, secondClone.getComment(i).getText());
+        }
+    }
+
+    @Test
+    public void testVerifyDetectsUntrackedChanges() throws ReflectiveOperationException {
+        note.setPitch(30);
+        Assertions.assertTrue(tm.verify(fullScore).isConsistent());
+        Assertions.assertEquals(13, tm.verify(read).getVerifiedObjects());
+
+        Note deleted = note;
+        deleted.getOwner().remove();
+        fullScore.commit();
+        //reflection bypasses the change tracking
+        Field pitch = Note.class.getDeclaredField("pitch");
+        pitch.setAccessible(true);
+        pitch.setInt(tieStart, 30);
+        Field nextTied = Note.class.getDeclaredField("nextTied");
+        nextTied.setAccessible(true);
+        nextTied.set(tieEnd, deleted);
+
+        VerificationReport report = tm.verify(fullScore);
+        Assertions.assertFalse(report.isConsistent());
+        Assertions.assertTrue(report.getMissingStates().isEmpty());
+        Assertions.assertEquals(2, report.getStaleStates().size());
+        Assertions.assertTrue(report.getStaleStates().contains(tieStart));
+        Assertions.assertEquals(1, report.getDanglingReferences().size());
+        Assertions.assertSame(tieEnd, report.getDanglingReferences().get(0).getSource());
+        Assertions.assertFalse(report.getDanglingReferences().get(0).isInRemote());
+    }
+
+    @Test
+    public void testMemoryReport() {
+        note.setPitch(30);
+        fullScore.commit();
+
+        MemoryReport report = tm.getMemoryReport();
+        Assertions.assertEquals(2, report.getRemotes().size());
+        for (MemoryReport.RemoteUsage remote : report.getRemotes()) {
+            Assertions.assertEquals(13, remote.getStates());
+            Assertions.assertTrue(remote.getEstimatedStateBytesByClass().get(Note.class) > 0);
+        }
+        //read didn't pull yet, so the commit is retained
+        Assertions.assertEquals(1, report.getCommits());
+        Assertions.assertEquals(1, report.getCommitRecords());
+        Assertions.assertTrue(report.getEstimatedTotalBytes() > report.getEstimatedCommitBytes());
+    }
+
+    @Test
+    public void testMemoryReportFollowsChanges() {
+        tm.enableUndoRedos();
+        long noteBytes = repository.remote.getKey(note).estimatedSize();
+        //a creation that is changed in the same undo state
+        NoteTimeTick ntt = new NoteTimeTick(track, Fraction.getFraction(24, 1));
+        Note created = new Note(new NoteGroup(ntt, staff, voice, 8, true), 60, false, NoteName.C);
+        fullScore.commit();
+        created.setPitch(62);
+        fullScore.commit();
+        tm.createUndoState();
+        //a change that is deleted in the same undo state
+        note.setPitch(30);
+        fullScore.commit();
+        note.getOwner().remove();
+        fullScore.commit();
+
+        MemoryReport report = tm.getMemoryReport();
+        Assertions.assertEquals(3*noteBytes, (long) usageOf(report, fullScore).getEstimatedStateBytesByClass().get(Note.class));
+        //read didn't pull yet
+        Assertions.assertEquals(3*noteBytes, (long) usageOf(report, read).getEstimatedStateBytesByClass().get(Note.class));
+        Assertions.assertEquals(4, report.getCommits());
+        int records = 0;
+        for (Commit commit : tm.commits.values()) {
+            Assertions.assertEquals(stateBytesOf(commit), commit.getEstimatedStateBytes());
+            records += MemoryReport.records(commit);
+        }
+        Assertions.assertEquals(records, report.getCommitRecords());
+        Assertions.assertEquals(stateBytesOf(tm.history.ongoingCommit), tm.history.ongoingCommit.getEstimatedStateBytes());
+        Assertions.assertEquals(1, report.getHistoryStates());
+        Assertions.assertEquals(MemoryReport.records(tm.history.head.self) + MemoryReport.records(tm.history.ongoingCommit), report.getHistoryRecords());
+
+        read.pull();
+        report = tm.getMemoryReport();
+        Assertions.assertEquals(3*noteBytes, (long) usageOf(report, read).getEstimatedStateBytesByClass().get(Note.class));
+        Assertions.assertEquals(0, report.getCommits());
+        Assertions.assertEquals(0, report.getCommitRecords());
+        Assertions.assertEquals(0, report.getEstimatedCommitBytes());
+    }
+
+    private static MemoryReport.RemoteUsage usageOf(MemoryReport report, RootEntity rootEntity) {
+        for (MemoryReport.RemoteUsage usage : report.getRemotes()) {
+            if (usage.getRootEntity() == rootEntity)
+                return usage;
+        }
+        throw new AssertionError("no remote of " + rootEntity);
+    }
+
+    private static long stateBytesOf(Commit commit) {
+        long bytes = 0;
+        for (Remote.ObjectState state : commit.getCreationRecords())
+            bytes += state.estimatedSize();
+        for (Remote.ObjectState state : commit.getDeletionRecords())
+            bytes += state.estimatedSize();
+        for (Map.Entry<Remote.ObjectState, Remote.ObjectState> entry : commit.getChangeRecords().entrySet())
+            bytes += entry.getKey().estimatedSize() + entry.getValue().estimatedSize();
+        return bytes;
+    }
+
+    @Test
+    public void testRemoteSnapshotsKeepStatesOfEarlierCommits() {
+        tm.enableRemoteSnapshots(fullScore);
+        CommitId commitBefore = repository.currentCommitId;
+        Remote.ObjectState tieStartBeforeChange = repository.remote.getKey(tieStart);
+        ObjectId tieEndId = repository.remote.getKey(tieEnd).objectId;
+
+        tieStart.setPitch(30);
+        tieEnd.remove();
+        Commit commit = fullScore.commit();
+
+        RemoteSnapshot before = tm.getRemoteSnapshot(fullScore, commitBefore);
+        RemoteSnapshot after = tm.getRemoteSnapshot(fullScore, commit.getCommitId());
+        Assertions.assertSame(tieStartBeforeChange, before.get(tieStartBeforeChange.objectId));
+        Assertions.assertSame(repository.remote.getKey(tieStart), after.get(tieStartBeforeChange.objectId));
+        Assertions.assertNotNull(before.get(tieEndId));
+        Assertions.assertNull(after.get(tieEndId));
+        Assertions.assertEquals(repository.remote.size(), after.size());
+    }
+
     @Test
     public void testCleanUpAndPullDeletion() {
         note.getOwner().remove();
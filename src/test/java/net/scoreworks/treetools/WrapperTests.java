@@ -101,6 +101,29 @@ public class WrapperTests {
         Assertions.assertTrue(readNgw.changeDetected);
     }
 
+    @Test
+    public void testBulkScopeNotifiesOnceAtItsEnd() {
+        Repository repository = tm.repositories.get(fullScore);
+        fullScore.bulk(() -> {
+            note.setPitch(30);
+            note.setAccidental(true);
+            new Note(note.getOwner(), 40, false, NoteName.B);
+            Assertions.assertFalse(writeNw.changeDetected);
+            Assertions.assertFalse(writeNgw.changeDetected);
+            Assertions.assertFalse(repository.locallyChangedContains(note));
+        });
+        Assertions.assertTrue(writeNw.changeDetected);
+        Assertions.assertTrue(writeNgw.changeDetected);
+        Assertions.assertTrue(repository.locallyChangedContains(note));
+
+        fullScore.commit();
+        read.pull();
+        Assertions.assertTrue(readNw.changeDetected);
+        Assertions.assertEquals(30, readNote.getPitch());
+        Assertions.assertTrue(readNote.getAccidental());
+        Assertions.assertEquals(40, readNote.getOwner().getNote(1).getPitch());
+    }
+
     private static class WrapperScope implements net.scoreworks.treetools.WrapperScope {
         private final Map<MutableObject, Wrapper<?>> registeredWrappers = new HashMap<>();
 
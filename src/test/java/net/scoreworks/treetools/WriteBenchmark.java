@@ -0,0 +1,77 @@
+package net.scoreworks.treetools;
+
+
+import net.scoreworks.testmodel.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the throughput of field writes on the test model, for the tracking backend the classes were built with.
+ * Run it with the gradle task {@code benchmark}, once per backend, and compare the results:
+ * <pre>
+ *     ./gradlew benchmark
+ *     ./gradlew benchmark -Ptracking=bytecode
+ * </pre>
+ * Writes are measured without transactions (cost of the hook alone) and with transactions, where the first write of an
+ * object per commit logs it and further writes only mark the field. Commits are not part of the measured time.
+ */
+public class WriteBenchmark {
+    static final int NOTES = 10_000;
+    static final int WARMUP_ROUNDS = 50;
+    static final int ROUNDS = 50;
+
+    public static void main(String[] args) {
+        String backend = args.length > 0 ? args[0] : "unknown";
+        TransactionManager tm = TransactionManager.getInstance();
+
+        FullScore untracked = new FullScore();
+        List<Note> notes = createNotes(untracked);
+        report(backend, "untracked writes", measure(notes, null));
+
+        FullScore tracked = new FullScore();
+        notes = createNotes(tracked);
+        tm.enableTransactionsForRootEntity(tracked);
+        report(backend, "tracked writes", measure(notes, tracked));
+        tm.shutdown();
+    }
+
+    private static List<Note> createNotes(FullScore fullScore) {
+        Track track = new Track(fullScore);
+        Staff staff = new Staff(track, true);
+        Voice voice = new Voice(track, 0);
+        List<Note> notes = new ArrayList<>(NOTES);
+        for (int i = 0; i < NOTES; i++) {
+            NoteTimeTick ntt = new NoteTimeTick(track, Fraction.getFraction(i, 1));
+            NoteGroup noteGroup = new NoteGroup(ntt, staff, voice, 8, true);
+            notes.add(new Note(noteGroup, 60, false, NoteName.C));
+        }
+        return notes;
+    }
+
+    /**
+     * @param committed root entity to commit after each round, null if transactions are not enabled
+     * @return best throughput of all measured rounds in writes per second
+     */
+    private static double measure(List<Note> notes, FullScore committed) {
+        double best = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            //two writes per note, the first one per commit logs the note, the second one finds it already logged
+            for (Note note : notes) {
+                note.setPitch(round);
+                note.setAccidental((round & 1) == 0);
+            }
+            long time = System.nanoTime() - start;
+            if (committed != null)
+                committed.commit();
+            if (round >= WARMUP_ROUNDS)
+                best = Math.max(best, 2.0 * notes.size() / time * 1e9);
+        }
+        return best;
+    }
+
+    private static void report(String backend, String scenario, double writesPerSecond) {
+        System.out.printf("%-10s %-18s %,15.0f writes/s%n", backend, scenario, writesPerSecond);
+    }
+}
@@ -0,0 +1,172 @@
+package net.scoreworks.treetools.weaver;
+
+
+import net.scoreworks.treetools.ChangeTracking;
+import net.scoreworks.treetools.MutableObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.*;
+
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class FieldWriteWeaverTests {
+    static final String SAMPLE =
+            "package net.scoreworks.sample;\n" +
+            "public class Sample extends net.scoreworks.treetools.RootEntity {\n" +
+            "    static int instances;\n" +
+            "    final int constant = 1;\n" +
+            "    transient int cache;\n" +
+            "    int count;\n" +
+            "    long duration;\n" +
+            "    double volume;\n" +
+            "    Object reference;\n" +
+            "    public void write(int count, long duration, double volume, Object reference) {\n" +
+            "        this.count = count;\n" +
+            "        this.duration = duration;\n" +
+            "        this.volume = volume;\n" +
+            "        this.reference = reference;\n" +
+            "        instances = count;\n" +
+            "        cache = count;\n" +
+            "    }\n" +
+            "    public static class Nested extends Sample {\n" +
+            "        public void writeInherited(long duration) {\n" +
+            "            this.duration = duration;\n" +
+            "        }\n" +
+            "    }\n" +
+            "}\n";
+
+    /** Calls of the hook made by the woven classes, as arguments of {@link ChangeTracking#beforeWrite} */
+    static final List<Object[]> writes = new ArrayList<>();
+
+    Path compiled;
+
+    @BeforeEach
+    public void compileSample() throws Exception {
+        writes.clear();
+        Path sources = Files.createTempDirectory("treetools-weaver");
+        Path source = sources.resolve("Sample.java");
+        Files.write(source, SAMPLE.getBytes(StandardCharsets.UTF_8));
+        compiled = Files.createTempDirectory("treetools-weaver");
+        String classpath = System.getProperty("java.class.path") + File.pathSeparator + locationOf(MutableObject.class);
+        Assertions.assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null,
+                "-d", compiled.toString(), "-classpath", classpath, "-proc:none", "-nowarn", source.toString()));
+    }
+
+    @Test
+    public void testHookReceivesWrittenValues() throws Exception {
+        Path woven = Files.createTempDirectory("treetools-weaver");
+        FieldWriteWeaver weaver = new FieldWriteWeaver(compiled, Collections.singletonList(Paths.get(locationOf(MutableObject.class))));
+        Assertions.assertEquals(2, weaver.weaveTo(woven));
+
+        SampleLoader loader = new SampleLoader();
+        Class<?> sample = loader.define(woven, "net.scoreworks.sample.Sample");
+        Class<?> nested = loader.define(woven, "net.scoreworks.sample.Sample$Nested");
+
+        Object mo = sample.getDeclaredConstructor().newInstance();
+        Object reference = new Object();
+        sample.getMethod("write", int.class, long.class, double.class, Object.class).invoke(mo, 7, 1L << 40, 0.25, reference);
+        //static, final and transient fields are not tracked
+        Assertions.assertEquals(4, writes.size());
+        assertWrite(writes.get(0), mo, 7, sample, "count");
+        assertWrite(writes.get(1), mo, 1L << 40, sample, "duration");
+        assertWrite(writes.get(2), mo, 0.25, sample, "volume");
+        assertWrite(writes.get(3), mo, reference, sample, "reference");
+        //the inserted code leaves the operands of the write as they were
+        Assertions.assertEquals(7, valueOf(mo, "count"));
+        Assertions.assertEquals(1L << 40, valueOf(mo, "duration"));
+        Assertions.assertEquals(0.25, valueOf(mo, "volume"));
+        Assertions.assertSame(reference, valueOf(mo, "reference"));
+
+        writes.clear();
+        Object inheriting = nested.getDeclaredConstructor().newInstance();
+        nested.getMethod("writeInherited", long.class).invoke(inheriting, -3L);
+        Assertions.assertEquals(1, writes.size());
+        assertWrite(writes.get(0), inheriting, -3L, nested, "duration");
+        Assertions.assertEquals(-3L, valueOf(inheriting, "duration"));
+
+        //woven classes are left as they are
+        byte[] classFile = Files.readAllBytes(woven.resolve("net/scoreworks/sample/Sample.class"));
+        Assertions.assertSame(classFile, weaver.weave(classFile));
+    }
+
+    @Test
+    public void testMissingSupertypeFailsTheWeave() throws Exception {
+        //RootEntity and MutableObject can't be found without TreeTools on the classpath
+        FieldWriteWeaver weaver = new FieldWriteWeaver(compiled, Collections.emptyList());
+        byte[] classFile = Files.readAllBytes(compiled.resolve("net/scoreworks/sample/Sample.class"));
+        Assertions.assertThrows(IllegalStateException.class, () -> weaver.weave(classFile));
+    }
+
+    /**
+     * Stands in for {@link ChangeTracking#beforeWrite} in the classes loaded by {@link SampleLoader}
+     */
+    public static void beforeWrite(MutableObject mo, Object newValue, Class<?> declaringClass, String fieldName) {
+        writes.add(new Object[]{mo, newValue, declaringClass, fieldName});
+    }
+
+    private static void assertWrite(Object[] write, Object mo, Object newValue, Class<?> declaringClass, String fieldName) {
+        Assertions.assertEquals(Arrays.asList(mo, newValue, declaringClass, fieldName), Arrays.asList(write));
+    }
+
+    private static Object valueOf(Object mo, String fieldName) throws ReflectiveOperationException {
+        Field field = findField(mo.getClass(), fieldName);
+        field.setAccessible(true);
+        return field.get(mo);
+    }
+
+    private static Field findField(Class<?> clazz, String fieldName) throws NoSuchFieldException {
+        for (Class<?> iterator = clazz; iterator != null; iterator = iterator.getSuperclass()) {
+            try {
+                return iterator.getDeclaredField(fieldName);
+            } catch (NoSuchFieldException e) {
+                //declared further up
+            }
+        }
+        throw new NoSuchFieldException(fieldName);
+    }
+
+    private static String locationOf(Class<?> clazz) throws Exception {
+        return Paths.get(clazz.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+    }
+
+    /**
+     * Defines woven classes with their calls of the hook redirected to {@link FieldWriteWeaverTests#beforeWrite}
+     */
+    private static class SampleLoader extends ClassLoader {
+        SampleLoader() {
+            super(FieldWriteWeaverTests.class.getClassLoader());
+        }
+
+        Class<?> define(Path classes, String className) throws Exception {
+            byte[] classFile = Files.readAllBytes(classes.resolve(className.replace('.', '/') + ".class"));
+            ClassReader reader = new ClassReader(classFile);
+            ClassWriter writer = new ClassWriter(reader, 0);
+            reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                    return new MethodVisitor(Opcodes.ASM9, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+                        @Override
+                        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                            if (owner.equals(Type.getInternalName(ChangeTracking.class)))
+                                owner = Type.getInternalName(FieldWriteWeaverTests.class);
+                            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                        }
+                    };
+                }
+            }, 0);
+            byte[] redirected = writer.toByteArray();
+            return defineClass(className, redirected, 0, redirected.length);
+        }
+    }
+}